@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.apacheds.auth;
+
+import com.denismo.aws.iam.BenchDirectory;
+import com.denismo.aws.iam.StubVerifier;
+import com.denismo.aws.iam.harness.FakeIAM;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AWSIAMAuthenticator#authenticate} against an embedded directory with IAM verification stubbed out:
+ * IAM binds answered by the credential cache, IAM binds with a new secret every time (cache miss, handed to
+ * the verification executor) and binds of an ordinary entry delegated to the simple authenticator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AuthenticateBenchmark {
+    private static final int USERS = 1000;
+    private static final String SECRET = "wJalrXUtnFEMI/K7MDENG/bPxRfiCYEXAMPLEKEY";
+
+    @Param({"cached", "cold", "delegated"})
+    public String path;
+
+    private FakeIAM iam;
+    private BenchDirectory bench;
+    private AWSIAMAuthenticator authenticator;
+    private Dn[] users;
+    private Dn admin;
+
+    @State(Scope.Thread)
+    public static class Client {
+        private int next;
+    }
+
+    @Setup
+    public void start() throws Exception {
+        // Serves the same users as the snapshot, so the scheduled poll of the authenticator changes nothing
+        iam = new FakeIAM(0, USERS, 20, 0);
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("iamPartition", "true");
+        config.put("iamEndpoint", iam.getEndpoint());
+        config.put("iamRateLimit", "1000");
+        bench = BenchDirectory.start("auth-bench", config, false);
+        authenticator = new AWSIAMAuthenticator();
+        authenticator.init(bench.getDirectory());
+        authenticator.getValidator().setVerifier(new StubVerifier());
+        BenchDirectory.sync(authenticator.getPoller(), BenchDirectory.snapshot(USERS, 20));
+        users = new Dn[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = bench.getDirectory().getDnFactory().create(BenchDirectory.userDN(i));
+            if ("cached".equals(path)) {
+                bind(users[i], SECRET);
+            }
+        }
+        admin = bench.getDirectory().getDnFactory().create("uid=admin,ou=system");
+    }
+
+    @TearDown
+    public void stop() throws Exception {
+        authenticator.destroy();
+        bench.stop();
+        iam.stop();
+    }
+
+    @Benchmark
+    public LdapPrincipal authenticate(Client client) throws Exception {
+        int n = client.next++ & Integer.MAX_VALUE;
+        if ("delegated".equals(path)) {
+            return bind(admin, "secret");
+        }
+        return bind(users[n % USERS], "cold".equals(path) ? SECRET + System.identityHashCode(client) + "-" + n : SECRET);
+    }
+
+    private LdapPrincipal bind(Dn dn, String secret) throws Exception {
+        BindOperationContext bindContext = new BindOperationContext(bench.getDirectory().getAdminSession());
+        bindContext.setDn(dn);
+        bindContext.setCredentials(secret.getBytes("UTF-8"));
+        return authenticator.authenticate(bindContext);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.User;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
+import org.apache.directory.server.core.factory.DirectoryServiceFactory;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedded directory with the IAM schema and an authenticator config entry, and synthetic IAM snapshots,
+ * for the benchmarks. Lives in the package of the poller to reach its sync path without polling AWS.
+ */
+public class BenchDirectory {
+    public static final String ROOT_DN = "dc=iam,dc=bench";
+    public static final String ACCOUNT_ID = "123456789012";
+
+    private final DirectoryService directory;
+
+    private BenchDirectory(DirectoryService directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Starts a directory holding the IAM schema from dist/apacheds and a config entry with the given
+     * attributes, on top of defaults that keep everything local: hashed IDs, no throttling.
+     *
+     * @param rootPartition whether to create a JDBM partition for the rootDN, as opposed to iamPartition
+     */
+    public static BenchDirectory start(String name, Map<String, String> config, boolean rootPartition) throws Exception {
+        DirectoryServiceFactory factory = new DefaultDirectoryServiceFactory();
+        factory.init(name);
+        DirectoryService directory = factory.getDirectoryService();
+        BenchDirectory bench = new BenchDirectory(directory);
+        CoreSession session = directory.getAdminSession();
+
+        session.modify(new Dn(directory.getSchemaManager(), "cn=nis,ou=schema"),
+                new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "m-disabled", "FALSE"));
+        LdifReader reader = new LdifReader(new File(System.getProperty("bench.dist", "dist/apacheds"), "iam.ldif"));
+        try {
+            for (LdifEntry ldif : reader) {
+                session.add(new DefaultEntry(directory.getSchemaManager(), ldif.getEntry()));
+            }
+        } finally {
+            reader.close();
+        }
+
+        bench.addPartition("config", "ou=config");
+        session.add(new DefaultEntry(directory.getSchemaManager(), "ou=config",
+                "objectClass: top", "objectClass: organizationalUnit", "ou: config"));
+        List<Dn> parents = new ArrayList<Dn>();
+        for (Dn dn = new Dn(directory.getSchemaManager(), BridgeConfig.CONFIG_DN).getParent(); dn.size() > 1; dn = dn.getParent()) {
+            parents.add(0, dn);
+        }
+        for (Dn dn : parents) {
+            Entry entry = new DefaultEntry(directory.getSchemaManager(), dn);
+            entry.put("objectClass", "top", "extensibleObject");
+            entry.put(dn.getRdn().getType(), dn.getRdn().getValue());
+            session.add(entry);
+        }
+        DefaultEntry configEntry = new DefaultEntry(directory.getSchemaManager(), BridgeConfig.CONFIG_DN,
+                "objectClass: top", "objectClass: iamauthenticatorconfig", "cn: config",
+                "accessKey: AKIABENCHMARK0000000", "secretKey: bench",
+                "rootDN: " + ROOT_DN, "pollPeriod: 86400", "idAllocator: hash",
+                "idCacheDir: " + new File(directory.getInstanceLayout().getPartitionsDirectory(), "iam").getPath(),
+                "bindDnRate: 0", "bindAddressRate: 0");
+        for (Map.Entry<String, String> attr : config.entrySet()) {
+            configEntry.put(attr.getKey(), attr.getValue());
+        }
+        session.add(configEntry);
+
+        if (rootPartition) {
+            bench.addPartition("iam", ROOT_DN);
+            session.add(new DefaultEntry(directory.getSchemaManager(), ROOT_DN,
+                    "objectClass: top", "objectClass: domain", "dc: iam"));
+        }
+        return bench;
+    }
+
+    private void addPartition(String id, String suffix) throws Exception {
+        JdbmPartition partition = new JdbmPartition(directory.getSchemaManager());
+        partition.setId(id);
+        partition.setSuffixDn(new Dn(directory.getSchemaManager(), suffix));
+        partition.setPartitionPath(new File(directory.getInstanceLayout().getPartitionsDirectory(), id).toURI());
+        directory.addPartition(partition);
+    }
+
+    public DirectoryService getDirectory() {
+        return directory;
+    }
+
+    public void stop() throws Exception {
+        directory.shutdown();
+    }
+
+    /**
+     * @return a snapshot of the given number of users, each with an access key and two groups
+     */
+    public static IAMState snapshot(int users, int groups) {
+        IAMState state = new IAMState();
+        for (int i = 0; i < groups; i++) {
+            state.getGroups().add(new Group("/", "group" + i, "AGPA" + i,
+                    "arn:aws:iam::" + ACCOUNT_ID + ":group/group" + i, new Date(0)));
+        }
+        for (int i = 0; i < users; i++) {
+            String name = userName(i);
+            state.getUsers().add(new User("/", name, "AIDA" + i, "arn:aws:iam::" + ACCOUNT_ID + ":user/" + name, new Date(0)));
+            state.setUserGroups(name, new ArrayList<String>(Arrays.asList("group" + (i % groups), "group" + ((i + 1) % groups))));
+            state.setAccessKey(name, String.format("AKIA%016d", i));
+        }
+        return state;
+    }
+
+    /**
+     * @return the snapshot with the access key of every given nth user rotated
+     */
+    public static IAMState rotateKeys(IAMState state, int every) {
+        for (int i = 0; i < state.getUsers().size(); i += every) {
+            state.setAccessKey(userName(i), String.format("AKIB%016d", i));
+        }
+        return state;
+    }
+
+    public static String userName(int i) {
+        return "user" + i;
+    }
+
+    public static String userDN(int i) {
+        return "uid=" + userName(i) + ",ou=users," + ROOT_DN;
+    }
+
+    /**
+     * Applies the snapshot through the sync path of the poller, as a poll would after fetching it.
+     */
+    public static Map<String, String> sync(LDAPIAMPoller poller, IAMState state) throws Exception {
+        return poller.sync(state);
+    }
+}
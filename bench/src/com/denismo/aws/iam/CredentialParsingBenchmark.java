@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a bind password into credentials and a cache key, and answering from the credential cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CredentialParsingBenchmark {
+    private final IAMAccountIndex.Account user = new IAMAccountIndex.Account("user0", "AKIA0000000000000000", false);
+    private final IAMAccountIndex.Account role = new IAMAccountIndex.Account("role0", null, true);
+    private final String userSecret = "wJalrXUtnFEMI/K7MDENG/bPxRfiCYEXAMPLEKEY";
+    private String roleSecret;
+    private IAMPasswordValidator validator;
+
+    @Setup
+    public void start() throws Exception {
+        StringBuilder token = new StringBuilder();
+        while (token.length() < 600) {
+            token.append("FwoGZXIvYXdzEBYaDExampleSessionToken/");
+        }
+        roleSecret = "ASIA0000000000000000|" + userSecret + "|" + token;
+        validator = new IAMPasswordValidator();
+        validator.setVerifier(new StubVerifier());
+        validator.verifyIAMPassword(user, userSecret);
+        validator.verifyIAMPassword(role, roleSecret);
+    }
+
+    @TearDown
+    public void stop() {
+        validator.shutdown();
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return validator.getCredentialCache().key(user.getAccessKey(), userSecret);
+    }
+
+    @Benchmark
+    public boolean userCached() throws Exception {
+        return validator.verifyIAMPassword(user, userSecret);
+    }
+
+    @Benchmark
+    public boolean roleCached() throws Exception {
+        return validator.verifyIAMPassword(role, roleSecret);
+    }
+}
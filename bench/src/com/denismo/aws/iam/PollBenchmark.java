@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the desired entries from a poll and applying them, either to the in-memory IAM partition or
+ * to a JDBM partition through the nexus.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PollBenchmark {
+    @Param({"10000"})
+    public int users;
+
+    @Param({"true", "false"})
+    public boolean iamPartition;
+
+    private BenchDirectory bench;
+    private LDAPIAMPoller poller;
+    private IAMState state;
+    private IAMState rotated;
+    private boolean flip;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        bench = BenchDirectory.start("poll-bench", Collections.singletonMap("iamPartition", String.valueOf(iamPartition)),
+                !iamPartition);
+        poller = new LDAPIAMPoller(bench.getDirectory());
+        poller.setAccountIndex(new IAMAccountIndex());
+        poller.setCredentialCache(new CredentialCache());
+        state = BenchDirectory.snapshot(users, Math.max(1, users / 50));
+        rotated = BenchDirectory.rotateKeys(BenchDirectory.snapshot(users, Math.max(1, users / 50)), 100);
+        poller.sync(state);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        bench.stop();
+    }
+
+    /**
+     * Starts each invocation of {@link #syncInitial} from an empty directory.
+     */
+    @State(Scope.Benchmark)
+    public static class Emptied {
+        @Setup(Level.Invocation)
+        public void empty(PollBenchmark benchmark) throws Exception {
+            benchmark.poller.sync(new IAMState());
+        }
+    }
+
+    @Benchmark
+    public Map<String, Entry> buildDesired() {
+        return poller.buildDesired(state);
+    }
+
+    @Benchmark
+    public Map<String, String> syncUnchanged() throws Exception {
+        return poller.sync(state);
+    }
+
+    /**
+     * Alternates between two snapshots that differ in the access key of 1% of the users.
+     */
+    @Benchmark
+    public Map<String, String> syncRotated() throws Exception {
+        flip = !flip;
+        return poller.sync(flip ? rotated : state);
+    }
+
+    @Benchmark
+    public Map<String, String> syncInitial(Emptied emptied) throws Exception {
+        return poller.sync(state);
+    }
+}
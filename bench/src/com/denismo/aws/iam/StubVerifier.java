@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.auth.AWSCredentials;
+
+/**
+ * Answers verifications locally and at once, accepting any secret that does not start with "bad".
+ */
+public class StubVerifier implements CredentialVerifier {
+    @Override
+    public Boolean verify(AWSCredentials credentials) {
+        return !credentials.getAWSSecretKey().startsWith("bad");
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
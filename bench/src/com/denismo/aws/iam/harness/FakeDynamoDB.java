@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam.harness;
+
+import com.amazonaws.util.json.JSONArray;
+import com.amazonaws.util.json.JSONException;
+import com.amazonaws.util.json.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for the operations of the 2011-12-05 DynamoDB API used by the ID allocator: tables
+ * with a string hash key, CreateTable, DescribeTable, GetItem, PutItem, UpdateItem with ADD and PUT,
+ * BatchGetItem and BatchWriteItem. Tables are active as soon as they are created.
+ */
+public class FakeDynamoDB extends FakeService {
+    private static final String CONTENT_TYPE = "application/x-amz-json-1.0";
+    private static final String ERROR_PREFIX = "com.amazonaws.dynamodb.v20111205#";
+
+    private final Map<String, Table> tables = new HashMap<String, Table>();
+
+    private static class Table {
+        final JSONObject description;
+        final String hashKey;
+        final Map<String, JSONObject> items = new HashMap<String, JSONObject>();
+
+        Table(JSONObject description, String hashKey) {
+            this.description = description;
+            this.hashKey = hashKey;
+        }
+    }
+
+    public FakeDynamoDB(int port) throws IOException {
+        super("fake-dynamodb", port);
+    }
+
+    @Override
+    protected String action(HttpExchange exchange, byte[] body) {
+        String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+        return target != null ? target.substring(target.indexOf('.') + 1) : "Unknown";
+    }
+
+    @Override
+    protected synchronized Response handle(String action, HttpExchange exchange, byte[] body) throws JSONException, IOException {
+        JSONObject request = new JSONObject(new String(body, "UTF-8"));
+        JSONObject response = new JSONObject();
+        if ("CreateTable".equals(action)) {
+            String name = request.getString("TableName");
+            if (tables.containsKey(name)) {
+                return error("ResourceInUseException", "Table " + name + " already exists");
+            }
+            JSONObject description = new JSONObject();
+            description.put("TableName", name);
+            description.put("TableStatus", "ACTIVE");
+            description.put("KeySchema", request.getJSONObject("KeySchema"));
+            description.put("ProvisionedThroughput", request.getJSONObject("ProvisionedThroughput"));
+            description.put("CreationDateTime", System.currentTimeMillis() / 1000);
+            description.put("ItemCount", 0);
+            description.put("TableSizeBytes", 0);
+            tables.put(name, new Table(description,
+                    request.getJSONObject("KeySchema").getJSONObject("HashKeyElement").getString("AttributeName")));
+            response.put("TableDescription", description);
+            return ok(response);
+        }
+        if ("BatchGetItem".equals(action)) {
+            JSONObject responses = new JSONObject();
+            JSONObject requestItems = request.getJSONObject("RequestItems");
+            for (Iterator<?> it = requestItems.keys(); it.hasNext(); ) {
+                String name = (String) it.next();
+                Table table = tables.get(name);
+                if (table == null) return notFound(name);
+                JSONObject keysAndAttributes = requestItems.getJSONObject(name);
+                JSONArray keys = keysAndAttributes.getJSONArray("Keys");
+                JSONArray items = new JSONArray();
+                for (int i = 0; i < keys.length(); i++) {
+                    JSONObject item = table.items.get(hashKey(keys.getJSONObject(i)));
+                    if (item != null) {
+                        items.put(project(item, keysAndAttributes.optJSONArray("AttributesToGet")));
+                    }
+                }
+                JSONObject tableResponse = new JSONObject();
+                tableResponse.put("Items", items);
+                tableResponse.put("ConsumedCapacityUnits", Math.max(1, keys.length() / 2));
+                responses.put(name, tableResponse);
+            }
+            response.put("Responses", responses);
+            response.put("UnprocessedKeys", new JSONObject());
+            return ok(response);
+        }
+        if ("BatchWriteItem".equals(action)) {
+            JSONObject responses = new JSONObject();
+            JSONObject requestItems = request.getJSONObject("RequestItems");
+            for (Iterator<?> it = requestItems.keys(); it.hasNext(); ) {
+                String name = (String) it.next();
+                Table table = tables.get(name);
+                if (table == null) return notFound(name);
+                JSONArray writes = requestItems.getJSONArray(name);
+                for (int i = 0; i < writes.length(); i++) {
+                    JSONObject put = writes.getJSONObject(i).optJSONObject("PutRequest");
+                    JSONObject delete = writes.getJSONObject(i).optJSONObject("DeleteRequest");
+                    if (put != null) {
+                        JSONObject item = put.getJSONObject("Item");
+                        table.items.put(item.getJSONObject(table.hashKey).getString("S"), item);
+                    } else if (delete != null) {
+                        table.items.remove(hashKey(delete.getJSONObject("Key")));
+                    }
+                }
+                JSONObject tableResponse = new JSONObject();
+                tableResponse.put("ConsumedCapacityUnits", writes.length());
+                responses.put(name, tableResponse);
+            }
+            response.put("Responses", responses);
+            response.put("UnprocessedItems", new JSONObject());
+            return ok(response);
+        }
+
+        String name = request.getString("TableName");
+        Table table = tables.get(name);
+        if (table == null) {
+            return notFound(name);
+        }
+        if ("DescribeTable".equals(action)) {
+            response.put("Table", table.description);
+        } else if ("GetItem".equals(action)) {
+            JSONObject item = table.items.get(hashKey(request.getJSONObject("Key")));
+            if (item != null) {
+                response.put("Item", project(item, request.optJSONArray("AttributesToGet")));
+            }
+            response.put("ConsumedCapacityUnits", 0.5);
+        } else if ("PutItem".equals(action)) {
+            JSONObject item = request.getJSONObject("Item");
+            table.items.put(item.getJSONObject(table.hashKey).getString("S"), item);
+            response.put("ConsumedCapacityUnits", 1);
+        } else if ("UpdateItem".equals(action)) {
+            String key = hashKey(request.getJSONObject("Key"));
+            JSONObject item = table.items.get(key);
+            if (item == null) {
+                item = new JSONObject();
+                item.put(table.hashKey, new JSONObject().put("S", key));
+                table.items.put(key, item);
+            }
+            JSONObject updated = new JSONObject();
+            JSONObject updates = request.getJSONObject("AttributeUpdates");
+            for (Iterator<?> it = updates.keys(); it.hasNext(); ) {
+                String attribute = (String) it.next();
+                JSONObject update = updates.getJSONObject(attribute);
+                JSONObject value = update.getJSONObject("Value");
+                if ("ADD".equals(update.optString("Action", "PUT")) && value.has("N")) {
+                    JSONObject current = item.optJSONObject(attribute);
+                    BigDecimal sum = new BigDecimal(value.getString("N"));
+                    if (current != null) {
+                        sum = sum.add(new BigDecimal(current.getString("N")));
+                    }
+                    value = new JSONObject().put("N", sum.toPlainString());
+                }
+                item.put(attribute, value);
+                updated.put(attribute, value);
+            }
+            if (!"NONE".equals(request.optString("ReturnValues", "NONE"))) {
+                response.put("Attributes", "UPDATED_NEW".equals(request.getString("ReturnValues")) ? updated : item);
+            }
+            response.put("ConsumedCapacityUnits", 1);
+        } else {
+            return error("UnknownOperationException", "Unsupported operation " + action);
+        }
+        return ok(response);
+    }
+
+    @Override
+    protected Response throttle(String action) {
+        return error("ProvisionedThroughputExceededException", "The level of configured provisioned throughput for the table was exceeded.");
+    }
+
+    private static String hashKey(JSONObject key) throws JSONException {
+        return key.getJSONObject("HashKeyElement").getString("S");
+    }
+
+    private static JSONObject project(JSONObject item, JSONArray attributes) throws JSONException {
+        if (attributes == null) return item;
+        JSONObject projected = new JSONObject();
+        for (int i = 0; i < attributes.length(); i++) {
+            String attribute = attributes.getString(i);
+            if (item.has(attribute)) {
+                projected.put(attribute, item.get(attribute));
+            }
+        }
+        return projected;
+    }
+
+    private static Response ok(JSONObject response) {
+        return new Response(200, CONTENT_TYPE, response.toString());
+    }
+
+    private static Response notFound(String table) {
+        return error("ResourceNotFoundException", "Requested resource not found: Table: " + table + " not found");
+    }
+
+    private static Response error(String type, String message) {
+        try {
+            JSONObject error = new JSONObject();
+            error.put("__type", ERROR_PREFIX + type);
+            error.put("message", message);
+            return new Response(400, CONTENT_TYPE, error.toString());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
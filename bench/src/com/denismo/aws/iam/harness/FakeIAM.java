@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam.harness;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the IAM and STS query APIs serving a synthetic account: user i is "user" + i with the
+ * single active access key {@link #accessKey(int)}, in group "group" + (i % groups), and role j is
+ * "role" + j. GetCallerIdentity accepts any access key of a user without checking the signature, so
+ * binds with a wrong secret are only rejected by the bridge itself.
+ */
+public class FakeIAM extends FakeService {
+    private static final String IAM_NS = "https://iam.amazonaws.com/doc/2010-05-08/";
+    private static final String STS_NS = "https://sts.amazonaws.com/doc/2011-06-15/";
+    private static final String ACCOUNT_ID = "123456789012";
+    private static final String CREATED = "2013-03-30T00:00:00Z";
+    private static final Pattern CREDENTIAL = Pattern.compile("Credential=([A-Z0-9]+)/");
+
+    private final int users;
+    private final int groups;
+    private final int roles;
+
+    public FakeIAM(int port, int users, int groups, int roles) throws IOException {
+        super("fake-iam", port);
+        this.users = users;
+        this.groups = Math.max(1, groups);
+        this.roles = roles;
+    }
+
+    public static String userName(int i) {
+        return "user" + i;
+    }
+
+    public static String accessKey(int i) {
+        return String.format("AKIA%016d", i);
+    }
+
+    public static String secretKey(int i) {
+        return "secret" + i;
+    }
+
+    @Override
+    protected String action(HttpExchange exchange, byte[] body) throws IOException {
+        Map<String, String> params = params(exchange, body);
+        exchange.setAttribute("params", params);
+        String action = params.get("Action");
+        return action != null ? action : "Unknown";
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected Response handle(String action, HttpExchange exchange, byte[] body) {
+        Map<String, String> params = (Map<String, String>) exchange.getAttribute("params");
+        if ("GetCallerIdentity".equals(action)) {
+            return getCallerIdentity(exchange, params);
+        }
+        if ("GetAccountAuthorizationDetails".equals(action)) {
+            return getAccountAuthorizationDetails(params);
+        }
+        if ("ListUsers".equals(action)) {
+            return list(action, "Users", users, params, new Item() {
+                @Override
+                public String xml(int i) {
+                    return user(i);
+                }
+            });
+        }
+        if ("ListGroups".equals(action)) {
+            return list(action, "Groups", groups, params, new Item() {
+                @Override
+                public String xml(int i) {
+                    return group(i);
+                }
+            });
+        }
+        if ("ListRoles".equals(action)) {
+            return list(action, "Roles", roles, params, new Item() {
+                @Override
+                public String xml(int i) {
+                    return role(i);
+                }
+            });
+        }
+        int user = index(params.get("UserName"), "user", users);
+        if ("ListGroupsForUser".equals(action)) {
+            if (user < 0) return noSuchEntity(params.get("UserName"));
+            return ok(action, "<Groups>" + member(group(user % groups)) + "</Groups><IsTruncated>false</IsTruncated>");
+        }
+        if ("ListAccessKeys".equals(action)) {
+            if (user < 0) return noSuchEntity(params.get("UserName"));
+            return ok(action, "<UserName>" + userName(user) + "</UserName><AccessKeyMetadata>" + member(
+                    "<UserName>" + userName(user) + "</UserName><AccessKeyId>" + accessKey(user) + "</AccessKeyId>"
+                            + "<Status>Active</Status><CreateDate>" + CREATED + "</CreateDate>")
+                    + "</AccessKeyMetadata><IsTruncated>false</IsTruncated>");
+        }
+        if ("GetUser".equals(action)) {
+            if (user < 0) return noSuchEntity(params.get("UserName"));
+            return ok(action, "<User>" + user(user) + "</User>");
+        }
+        if ("GetRole".equals(action)) {
+            int role = index(params.get("RoleName"), "role", roles);
+            if (role < 0) return noSuchEntity(params.get("RoleName"));
+            return ok(action, "<Role>" + role(role) + "</Role>");
+        }
+        if ("GetGroup".equals(action)) {
+            int group = index(params.get("GroupName"), "group", groups);
+            if (group < 0) return noSuchEntity(params.get("GroupName"));
+            StringBuilder members = new StringBuilder();
+            for (int i = group; i < users; i += groups) {
+                members.append(member(user(i)));
+            }
+            return ok(action, "<Group>" + group(group) + "</Group><Users>" + members + "</Users><IsTruncated>false</IsTruncated>");
+        }
+        return error(400, IAM_NS, "InvalidAction", "The action " + action + " is not valid for this web service.");
+    }
+
+    @Override
+    protected Response throttle(String action) {
+        return error(400, "GetCallerIdentity".equals(action) ? STS_NS : IAM_NS, "Throttling", "Rate exceeded");
+    }
+
+    private Response getCallerIdentity(HttpExchange exchange, Map<String, String> params) {
+        String accessKey = params.get("AWSAccessKeyId");
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (accessKey == null && authorization != null) {
+            Matcher matcher = CREDENTIAL.matcher(authorization);
+            accessKey = matcher.find() ? matcher.group(1) : null;
+        }
+        int user = accessKey != null && accessKey.startsWith("AKIA") ? index(accessKey, "AKIA", users) : -1;
+        if (user < 0) {
+            return error(403, STS_NS, "InvalidClientTokenId", "The security token included in the request is invalid.");
+        }
+        return new Response(200, "text/xml", "<GetCallerIdentityResponse xmlns=\"" + STS_NS + "\"><GetCallerIdentityResult>"
+                + "<Arn>arn:aws:iam::" + ACCOUNT_ID + ":user/" + userName(user) + "</Arn><UserId>" + userId(user) + "</UserId>"
+                + "<Account>" + ACCOUNT_ID + "</Account></GetCallerIdentityResult>"
+                + "<ResponseMetadata><RequestId>" + requestId() + "</RequestId></ResponseMetadata></GetCallerIdentityResponse>");
+    }
+
+    /**
+     * Pages through the groups, then the users, then the roles, if the filter asks for them.
+     */
+    private Response getAccountAuthorizationDetails(Map<String, String> params) {
+        boolean withRoles = false;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            withRoles |= param.getKey().startsWith("Filter.member.") && "Role".equals(param.getValue());
+        }
+        int total = groups + users + (withRoles ? roles : 0);
+        int start = params.containsKey("Marker") ? Integer.parseInt(params.get("Marker")) : 0;
+        int end = Math.min(total, start + maxItems(params));
+        StringBuilder groupList = new StringBuilder();
+        StringBuilder userList = new StringBuilder();
+        StringBuilder roleList = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            if (i < groups) {
+                groupList.append(member(group(i) + "<GroupPolicyList/><AttachedManagedPolicies/>"));
+            } else if (i < groups + users) {
+                int user = i - groups;
+                userList.append(member(user(user) + "<GroupList>" + member("group" + (user % groups))
+                        + "</GroupList><UserPolicyList/><AttachedManagedPolicies/>"));
+            } else {
+                roleList.append(member(role(i - groups - users) + "<InstanceProfileList/><RolePolicyList/><AttachedManagedPolicies/>"));
+            }
+        }
+        return ok("GetAccountAuthorizationDetails", "<UserDetailList>" + userList + "</UserDetailList><GroupDetailList>"
+                + groupList + "</GroupDetailList><RoleDetailList>" + roleList + "</RoleDetailList><Policies/>" + page(end, total));
+    }
+
+    private interface Item {
+        String xml(int i);
+    }
+
+    private Response list(String action, String element, int count, Map<String, String> params, Item item) {
+        int start = params.containsKey("Marker") ? Integer.parseInt(params.get("Marker")) : 0;
+        int end = Math.min(count, start + maxItems(params));
+        StringBuilder members = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            members.append(member(item.xml(i)));
+        }
+        return ok(action, "<" + element + ">" + members + "</" + element + ">" + page(end, count));
+    }
+
+    private static int maxItems(Map<String, String> params) {
+        return params.containsKey("MaxItems") ? Integer.parseInt(params.get("MaxItems")) : 100;
+    }
+
+    private static String page(int end, int total) {
+        return end < total ? "<IsTruncated>true</IsTruncated><Marker>" + end + "</Marker>" : "<IsTruncated>false</IsTruncated>";
+    }
+
+    private static String member(String xml) {
+        return "<member>" + xml + "</member>";
+    }
+
+    private static String userId(int i) {
+        return String.format("AIDA%017d", i);
+    }
+
+    private static String user(int i) {
+        return "<Path>/</Path><UserName>" + userName(i) + "</UserName><UserId>" + userId(i) + "</UserId>"
+                + "<Arn>arn:aws:iam::" + ACCOUNT_ID + ":user/" + userName(i) + "</Arn><CreateDate>" + CREATED + "</CreateDate>";
+    }
+
+    private static String group(int i) {
+        return "<Path>/</Path><GroupName>group" + i + "</GroupName><GroupId>" + String.format("AGPA%017d", i) + "</GroupId>"
+                + "<Arn>arn:aws:iam::" + ACCOUNT_ID + ":group/group" + i + "</Arn><CreateDate>" + CREATED + "</CreateDate>";
+    }
+
+    private static String role(int i) {
+        return "<Path>/</Path><RoleName>role" + i + "</RoleName><RoleId>" + String.format("AROA%017d", i) + "</RoleId>"
+                + "<Arn>arn:aws:iam::" + ACCOUNT_ID + ":role/role" + i + "</Arn><CreateDate>" + CREATED + "</CreateDate>";
+    }
+
+    /**
+     * @return the number following the prefix in the name, or -1 if there is no such entity
+     */
+    private static int index(String name, String prefix, int count) {
+        if (name == null || !name.startsWith(prefix)) return -1;
+        try {
+            int i = Integer.parseInt(name.substring(prefix.length()));
+            return i >= 0 && i < count ? i : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Response ok(String action, String result) {
+        return new Response(200, "text/xml", "<" + action + "Response xmlns=\"" + IAM_NS + "\"><" + action + "Result>"
+                + result + "</" + action + "Result><ResponseMetadata><RequestId>" + requestId()
+                + "</RequestId></ResponseMetadata></" + action + "Response>");
+    }
+
+    private static Response noSuchEntity(String name) {
+        return error(404, IAM_NS, "NoSuchEntity", "The entity with name " + name + " cannot be found.");
+    }
+
+    private static Response error(int status, String namespace, String code, String message) {
+        return new Response(status, "text/xml", "<ErrorResponse xmlns=\"" + namespace + "\"><Error><Type>Sender</Type><Code>"
+                + code + "</Code><Message>" + message + "</Message></Error><RequestId>" + requestId()
+                + "</RequestId></ErrorResponse>");
+    }
+
+    private static Map<String, String> params(HttpExchange exchange, byte[] body) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        List<String> pairs = new ArrayList<String>();
+        if (exchange.getRequestURI().getRawQuery() != null) {
+            pairs.add(exchange.getRequestURI().getRawQuery());
+        }
+        pairs.add(new String(body, "UTF-8"));
+        for (String query : pairs) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+}
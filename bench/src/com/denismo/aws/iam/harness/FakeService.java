@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam.harness;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP stand-in for an AWS service. Every call is delayed by a fixed latency, and calls above
+ * the rate limit are answered with the throttling error of the service. Calls are counted by action.
+ */
+public abstract class FakeService implements HttpHandler {
+    private final HttpServer server;
+    private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile long latency;
+    private double rateLimit;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    protected FakeService(String name, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newCachedThreadPool(daemonThreads(name)));
+        server.start();
+    }
+
+    static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param millis time added to every call
+     */
+    public void setLatency(long millis) {
+        this.latency = millis;
+    }
+
+    /**
+     * @param perSecond calls per second served before throttling, with a burst of one second, 0 for no limit
+     */
+    public synchronized void setRateLimit(double perSecond) {
+        this.rateLimit = perSecond;
+        this.tokens = perSecond;
+    }
+
+    public Map<String, Long> getCalls() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : calls.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getTotalCalls() {
+        long total = 0;
+        for (AtomicLong count : calls.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = read(exchange.getRequestBody());
+            String action = action(exchange, body);
+            AtomicLong count = calls.get(action);
+            if (count == null) {
+                calls.putIfAbsent(action, new AtomicLong());
+                count = calls.get(action);
+            }
+            count.incrementAndGet();
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            Response response;
+            if (acquire()) {
+                response = handle(action, exchange, body);
+            } else {
+                throttled.incrementAndGet();
+                response = throttle(action);
+            }
+            send(exchange, response);
+        } catch (Exception e) {
+            send(exchange, new Response(500, "text/plain", String.valueOf(e)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized boolean acquire() {
+        if (rateLimit <= 0) return true;
+        long now = System.nanoTime();
+        tokens = Math.min(rateLimit, tokens + (now - lastRefill) / 1e9 * rateLimit);
+        lastRefill = now;
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    protected abstract String action(HttpExchange exchange, byte[] body) throws Exception;
+
+    protected abstract Response handle(String action, HttpExchange exchange, byte[] body) throws Exception;
+
+    protected abstract Response throttle(String action);
+
+    protected static String requestId() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        byte[] bytes = response.body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", response.contentType);
+        exchange.getResponseHeaders().set("x-amzn-RequestId", requestId());
+        exchange.sendResponseHeaders(response.status, bytes.length > 0 ? bytes.length : -1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    protected static class Response {
+        final int status;
+        final String contentType;
+        final String body;
+
+        protected Response(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam.harness;
+
+import com.denismo.aws.iam.BridgeMetrics;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multi-threaded LDAP client driving binds as random IAM users at a fixed aggregate rate, each on a new
+ * connection as pam_ldap does, with uid lookups on a long-lived connection in between as NSS does.
+ * Operations are scheduled open-loop and their latency is measured from the time they were due, so a
+ * server that falls behind shows up as latency rather than as a lower offered rate.
+ */
+public class LoadDriver {
+    private final String url;
+    private final String usersDN;
+    private final int users;
+    private final int threads;
+    private final double bindRate;
+    private final double searchRatio;
+    private final String adminDN;
+    private final String adminPassword;
+
+    private final AtomicReference<Interval> interval = new AtomicReference<Interval>(new Interval());
+    private volatile boolean running;
+
+    /**
+     * Counts and latencies of the operations completed since the interval started.
+     */
+    public static class Interval {
+        public final long startNanos = System.nanoTime();
+        public final BridgeMetrics.Histogram binds = new BridgeMetrics.Histogram();
+        public final BridgeMetrics.Histogram searches = new BridgeMetrics.Histogram();
+        public final AtomicLong bindFailures = new AtomicLong();
+        public final AtomicLong searchFailures = new AtomicLong();
+    }
+
+    /**
+     * @param searchRatio uid lookups per bind
+     */
+    public LoadDriver(String url, String usersDN, int users, int threads, double bindRate, double searchRatio,
+                      String adminDN, String adminPassword) {
+        this.url = url;
+        this.usersDN = usersDN;
+        this.users = users;
+        this.threads = threads;
+        this.bindRate = bindRate;
+        this.searchRatio = searchRatio;
+        this.adminDN = adminDN;
+        this.adminPassword = adminPassword;
+    }
+
+    /**
+     * @return the operations completed since the previous call, starting a new interval
+     */
+    public Interval nextInterval() {
+        return interval.getAndSet(new Interval());
+    }
+
+    public void run(long duration, TimeUnit unit) throws InterruptedException {
+        running = true;
+        final long end = System.nanoTime() + unit.toNanos(duration);
+        final long period = (long) (threads * 1e9 / bindRate);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long offset = period * t / threads;
+            final int seed = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drive(System.nanoTime() + offset, period, end, new Random(seed));
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        running = false;
+    }
+
+    private void drive(long due, long period, long end, Random random) {
+        DirContext lookups = null;
+        double searches = 0;
+        while (running && due < end) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            int user = random.nextInt(users);
+            Interval current = interval.get();
+            try {
+                bind("uid=" + FakeIAM.userName(user) + "," + usersDN, FakeIAM.secretKey(user)).close();
+                current.binds.recordSince(due);
+            } catch (NamingException e) {
+                current.bindFailures.incrementAndGet();
+            }
+            for (searches += searchRatio; searches >= 1; searches--) {
+                long start = System.nanoTime();
+                try {
+                    if (lookups == null) {
+                        lookups = bind(adminDN, adminPassword);
+                    }
+                    lookup(lookups, FakeIAM.userName(random.nextInt(users)));
+                    current.searches.recordSince(start);
+                } catch (NamingException e) {
+                    current.searchFailures.incrementAndGet();
+                    close(lookups);
+                    lookups = null;
+                }
+            }
+            due += period;
+        }
+        close(lookups);
+    }
+
+    private DirContext bind(String dn, String password) throws NamingException {
+        Hashtable<String, String> env = new Hashtable<String, String>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        env.put(Context.PROVIDER_URL, url);
+        env.put(Context.SECURITY_AUTHENTICATION, "simple");
+        env.put(Context.SECURITY_PRINCIPAL, dn);
+        env.put(Context.SECURITY_CREDENTIALS, password);
+        env.put("com.sun.jndi.ldap.connect.timeout", "5000");
+        env.put("com.sun.jndi.ldap.read.timeout", "30000");
+        return new InitialDirContext(env);
+    }
+
+    private void lookup(DirContext context, String uid) throws NamingException {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(new String[] {"uid", "uidNumber", "gidNumber", "homeDirectory", "loginShell"});
+        NamingEnumeration<SearchResult> results = context.search(usersDN, "(&(objectClass=posixAccount)(uid={0}))",
+                new Object[] {uid}, controls);
+        try {
+            while (results.hasMore()) {
+                results.next();
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    private static void close(DirContext context) {
+        if (context == null) return;
+        try {
+            context.close();
+        } catch (NamingException e) {
+            // Already broken
+        }
+    }
+}
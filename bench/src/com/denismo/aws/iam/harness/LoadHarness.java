@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam.harness;
+
+import com.denismo.apacheds.auth.AWSIAMAuthenticator;
+import com.denismo.aws.iam.BenchDirectory;
+import com.denismo.aws.iam.BridgeMetrics;
+import com.denismo.aws.iam.LDAPIAMPoller;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.authn.AnonymousAuthenticator;
+import org.apache.directory.server.core.authn.AuthenticationInterceptor;
+import org.apache.directory.server.core.authn.Authenticator;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the bridge in an embedded LDAP server against local IAM, STS and DynamoDB stand-ins, waits for the
+ * first poll to load the synthetic account, then drives it with {@link LoadDriver} and reports throughput,
+ * latency percentiles, heap use and AWS call counts every 10 seconds.
+ *
+ * Options are given as name=value arguments. Besides the ones below, any other name is put on the
+ * authenticator config entry, e.g. iamPartition=true or iamRateLimit=100.
+ * <pre>
+ * users=50000 groups=1000 roles=0          size of the fake account
+ * bindRate=1000 threads=64 searchRatio=1   load: binds per second, client threads, uid lookups per bind
+ * duration=120 syncTimeout=3600            seconds of load, seconds allowed for the first poll
+ * iamLatency=30 iamRate=20                 added milliseconds and calls per second before IAM throttles
+ * stsLatency=20 stsRate=0
+ * dynamoLatency=5 dynamoRate=0
+ * ldapPort=10389
+ * </pre>
+ */
+public class LoadHarness {
+    private static final String[] METRIC_PREFIXES = {"aws.", "binds.", "verify.", "poll."};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Expected name=value, got " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int users = take(options, "users", 50000);
+        int groups = take(options, "groups", 1000);
+        int roles = take(options, "roles", 0);
+        int bindRate = take(options, "bindRate", 1000);
+        int threads = take(options, "threads", 64);
+        double searchRatio = Double.parseDouble(options.containsKey("searchRatio") ? options.remove("searchRatio") : "1");
+        int duration = take(options, "duration", 120);
+        int syncTimeout = take(options, "syncTimeout", 3600);
+        int ldapPort = take(options, "ldapPort", 10389);
+
+        FakeIAM iam = new FakeIAM(0, users, groups, roles);
+        iam.setLatency(take(options, "iamLatency", 30));
+        iam.setRateLimit(take(options, "iamRate", 20));
+        FakeIAM sts = new FakeIAM(0, users, groups, roles);
+        sts.setLatency(take(options, "stsLatency", 20));
+        sts.setRateLimit(take(options, "stsRate", 0));
+        FakeDynamoDB dynamo = new FakeDynamoDB(0);
+        dynamo.setLatency(take(options, "dynamoLatency", 5));
+        dynamo.setRateLimit(take(options, "dynamoRate", 0));
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("iamEndpoint", iam.getEndpoint());
+        config.put("stsEndpoint", sts.getEndpoint());
+        config.put("dynamoDBEndpoint", dynamo.getEndpoint());
+        config.put("idAllocator", "dynamodb");
+        config.put("syncRoles", String.valueOf(roles > 0));
+        config.putAll(options);
+        BenchDirectory bench = BenchDirectory.start("load-harness", config, !"true".equals(config.get("iamPartition")));
+        DirectoryService directory = bench.getDirectory();
+
+        AWSIAMAuthenticator authenticator = new AWSIAMAuthenticator();
+        AuthenticationInterceptor authentication = (AuthenticationInterceptor) directory.getInterceptor(
+                InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName());
+        Set<Authenticator> authenticators = new HashSet<Authenticator>();
+        authenticators.add(new AnonymousAuthenticator());
+        authenticators.add(authenticator);
+        authentication.setAuthenticators(authenticators);
+        authentication.init(directory);
+
+        LdapServer server = new LdapServer();
+        server.setDirectoryService(directory);
+        server.setTransports(new TcpTransport(ldapPort));
+        server.start();
+
+        System.out.println("Waiting for the first poll of " + users + " users and " + groups + " groups");
+        long start = System.currentTimeMillis();
+        LDAPIAMPoller poller = authenticator.getPoller();
+        while (poller.getState() != LDAPIAMPoller.State.READY) {
+            if (System.currentTimeMillis() - start > syncTimeout * 1000L) {
+                System.out.println("The first poll did not complete in " + syncTimeout + "s, poller is " + poller.getState());
+                break;
+            }
+            Thread.sleep(5000);
+            System.out.println(String.format("  %4ds IAM %d calls, %d throttled, DynamoDB %d calls, heap %d MB",
+                    (System.currentTimeMillis() - start) / 1000, iam.getTotalCalls(), iam.getThrottled(),
+                    dynamo.getTotalCalls(), usedHeap()));
+        }
+        System.out.println("First poll took " + (System.currentTimeMillis() - start) / 1000 + "s: IAM " + iam.getCalls()
+                + ", DynamoDB " + dynamo.getCalls() + ", heap " + usedHeap() + " MB");
+
+        final LoadDriver driver = new LoadDriver("ldap://127.0.0.1:" + ldapPort, "ou=users," + BenchDirectory.ROOT_DN,
+                users, threads, bindRate, searchRatio, "uid=admin,ou=system", "secret");
+        final FakeService[] services = {iam, sts, dynamo};
+        System.out.println(String.format("%6s %8s %22s %6s %8s %22s %6s %8s %8s %8s %8s %9s", "time", "binds/s",
+                "bind p50/p99/max ms", "fail", "search/s", "search p50/p99/max ms", "fail", "heap MB", "IAM", "STS",
+                "DynamoDB", "throttled"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(FakeService.daemonThreads("report"));
+        final long loadStart = System.nanoTime();
+        driver.nextInterval();
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(driver.nextInterval(), loadStart, services);
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+        driver.run(duration, TimeUnit.SECONDS);
+        reporter.shutdownNow();
+        report(driver.nextInterval(), loadStart, services);
+
+        System.out.println("IAM calls " + iam.getCalls() + ", STS calls " + sts.getCalls() + ", DynamoDB calls " + dynamo.getCalls());
+        for (Map.Entry<String, Long> metric : BridgeMetrics.snapshot().entrySet()) {
+            for (String prefix : METRIC_PREFIXES) {
+                if (metric.getKey().startsWith(prefix)) {
+                    System.out.println("  " + metric.getKey() + " = " + metric.getValue());
+                }
+            }
+        }
+
+        server.stop();
+        authenticator.destroy();
+        bench.stop();
+        for (FakeService service : services) {
+            service.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void report(LoadDriver.Interval interval, long loadStart, FakeService[] services) {
+        double seconds = (System.nanoTime() - interval.startNanos) / 1e9;
+        System.out.println(String.format("%5ds %8.0f %22s %6d %8.0f %22s %6d %8d %8d %8d %8d %9d",
+                (System.nanoTime() - loadStart) / 1000000000L,
+                interval.binds.getCount() / seconds, percentiles(interval.binds), interval.bindFailures.get(),
+                interval.searches.getCount() / seconds, percentiles(interval.searches), interval.searchFailures.get(),
+                usedHeap(), services[0].getTotalCalls(), services[1].getTotalCalls(), services[2].getTotalCalls(),
+                services[0].getThrottled() + services[1].getThrottled() + services[2].getThrottled()));
+    }
+
+    private static String percentiles(BridgeMetrics.Histogram histogram) {
+        return String.format("%.1f/%.1f/%.1f", histogram.getPercentile(0.5) / 1000.0,
+                histogram.getPercentile(0.99) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+    }
+
+    private static int take(Map<String, String> options, String name, int defaultValue) {
+        String value = options.remove(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
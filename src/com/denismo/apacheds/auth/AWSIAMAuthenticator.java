@@ -18,8 +18,14 @@
 
 package com.denismo.apacheds.auth;
 
+import com.denismo.aws.iam.BridgeConfig;
+import com.denismo.aws.iam.BridgeMetrics;
+import com.denismo.aws.iam.CircuitBreaker;
+import com.denismo.aws.iam.IAMAccountIndex;
 import com.denismo.aws.iam.IAMPasswordValidator;
+import com.denismo.aws.iam.IAMProvisioning;
 import com.denismo.aws.iam.LDAPIAMPoller;
+import com.denismo.aws.iam.MonitorPartition;
 import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
@@ -32,11 +38,16 @@ import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: Denis Mikhalkin
@@ -45,10 +56,19 @@ import java.net.SocketAddress;
  */
 public class AWSIAMAuthenticator extends AbstractAuthenticator {
     private static final Logger LOG = LoggerFactory.getLogger(AWSIAMAuthenticator.class);
+    private static final AtomicLong iamSuccesses = BridgeMetrics.counter("binds.iam.successes");
+    private static final AtomicLong iamFailures = BridgeMetrics.counter("binds.iam.failures");
+    private static final AtomicLong delegatedSuccesses = BridgeMetrics.counter("binds.delegated.successes");
+    private static final AtomicLong delegatedFailures = BridgeMetrics.counter("binds.delegated.failures");
+    private static final BridgeMetrics.Histogram iamLatency = BridgeMetrics.histogram("binds.iam.latency");
+    private static final BridgeMetrics.Histogram delegatedLatency = BridgeMetrics.histogram("binds.delegated.latency");
 
     private final IAMPasswordValidator validator = new IAMPasswordValidator();
+    private final IAMAccountIndex accountIndex = new IAMAccountIndex();
+    private final BindThrottle throttle = new BindThrottle();
     private LDAPIAMPoller poller;
     private SimpleAuthenticator delegatedAuth;
+    private List<Dn> rootDNs = new ArrayList<Dn>();
     private boolean disabled;
 
     public AWSIAMAuthenticator() {
@@ -64,8 +84,15 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
         if (getDirectoryService() != null) {
             try {
                 delegatedAuth.init(getDirectoryService());
+                validator.readConfig(getDirectoryService());
+                throttle.readConfig(getDirectoryService());
                 poller = new LDAPIAMPoller(getDirectoryService());
+                poller.setCredentialCache(validator.getCredentialCache());
+                poller.setAccountIndex(accountIndex);
                 poller.start();
+                readRootDNs();
+                registerGauges();
+                MonitorPartition.install(getDirectoryService());
             } catch (LdapException e) {
                 LOG.error("Exception initializing delegated SimpleAuthenticator", e);
                 disabled=true;
@@ -73,34 +100,177 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
         }
     }
 
+    private void readRootDNs() {
+        try {
+            rootDNs = BridgeConfig.readRootDNs(getDirectoryService());
+        } catch (Exception e) {
+            LOG.error("Exception reading the IAM rootDNs", e);
+        }
+    }
+
+    private void registerGauges() {
+        for (Stat stat : Stat.values()) {
+            BridgeMetrics.gauge(stat.metric, new StatGauge(stat));
+        }
+    }
+
+    private enum Stat {
+        QUEUE_DEPTH("verify.queueDepth"), ACTIVE("verify.active"), REJECTED("verify.rejected"),
+        TIMED_OUT("verify.timedOut"), BREAKER_OPEN("verify.breakerOpen"), CACHE_SIZE("verify.cache.size"),
+        THROTTLED_BY_DN("binds.throttledByDn"), THROTTLED_BY_ADDRESS("binds.throttledByAddress"),
+        REPEATED_FAILURES("binds.repeatedFailures"), ACCOUNTS_INDEXED("accounts.indexed");
+
+        private final String metric;
+
+        Stat(String metric) {
+            this.metric = metric;
+        }
+    }
+
+    /**
+     * Reads one of the statistics of the validator, the bind throttle or the account index.
+     */
+    private final class StatGauge implements BridgeMetrics.Gauge {
+        private final Stat stat;
+
+        StatGauge(Stat stat) {
+            this.stat = stat;
+        }
+
+        @Override
+        public long get() {
+            switch (stat) {
+                case QUEUE_DEPTH: return validator.getQueueDepth();
+                case ACTIVE: return validator.getActiveVerifications();
+                case REJECTED: return validator.getRejectedCount();
+                case TIMED_OUT: return validator.getTimedOutCount();
+                case BREAKER_OPEN: return validator.getBreakerState() == CircuitBreaker.State.CLOSED ? 0 : 1;
+                case CACHE_SIZE: return validator.getCredentialCache().size();
+                case THROTTLED_BY_DN: return throttle.getThrottledByDn();
+                case THROTTLED_BY_ADDRESS: return throttle.getThrottledByAddress();
+                case REPEATED_FAILURES: return throttle.getRepeatedFailures();
+                default: return accountIndex.size();
+            }
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        if (poller != null) {
+            poller.stop();
+        }
+        validator.shutdown();
+        super.doDestroy();
+    }
+
+    public BindThrottle getThrottle() {
+        return throttle;
+    }
+
+    public IAMPasswordValidator getValidator() {
+        return validator;
+    }
+
+    public LDAPIAMPoller getPoller() {
+        return poller;
+    }
+
     @Override
     public LdapPrincipal authenticate(BindOperationContext bindContext) throws Exception {
-        if (!isAWSAccount(bindContext) || disabled) {
-            LOG.info("Skipping " + bindContext.getDn() + " - not an AWS account");
+        long start = System.nanoTime();
+        IoSession session = bindContext.getIoSession();
+        SocketAddress clientAddress = session != null ? session.getRemoteAddress() : null;
+        IAMAccountIndex.Account account = disabled ? null : accountIndex.get(bindContext.getDn());
+        if (account == null && !disabled) {
+            account = lookupAccount(bindContext.getDn());
+        }
+        if (account == null && !disabled && IAMProvisioning.isEnabled() && IAMProvisioning.provision(bindContext.getDn())) {
+            account = accountIndex.get(bindContext.getDn());
+        }
+        if (account == null) {
+            LOG.debug("Skipping {} - not an AWS account", bindContext.getDn());
             if (delegatedAuth == null) {
                 LOG.error("Delegated auth is null");
                 return null;
             }
-            return delegatedAuth.authenticate(bindContext);
+            try {
+                LdapPrincipal principal = delegatedAuth.authenticate(bindContext);
+                delegatedSuccesses.incrementAndGet();
+                return principal;
+            } catch (Exception e) {
+                delegatedFailures.incrementAndGet();
+                throw e;
+            } finally {
+                delegatedLatency.recordSince(start);
+            }
         }
 
-        LOG.info("Authenticating " + bindContext.getDn());
+        LOG.debug("Authenticating {}", bindContext.getDn());
+        try {
+            LdapPrincipal principal = authenticateIAM(bindContext, account, session, clientAddress);
+            iamSuccesses.incrementAndGet();
+            return principal;
+        } catch (Exception e) {
+            iamFailures.incrementAndGet();
+            throw e;
+        } finally {
+            iamLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Reads the account from its entry when the index does not have it, as it may not be loaded yet. Only
+     * DNs under an IAM rootDN are looked up, so binds of other accounts cost nothing extra.
+     *
+     * @return the account, or null if the DN is not that of an IAM account entry
+     */
+    private IAMAccountIndex.Account lookupAccount(Dn dn) throws LdapException {
+        boolean underRoot = false;
+        for (Dn root : rootDNs) {
+            if (dn.isDescendantOf(root)) {
+                underRoot = true;
+            }
+        }
+        if (!underRoot) return null;
+        LookupOperationContext lookupContext = new LookupOperationContext( getDirectoryService().getAdminSession(),
+                dn, SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+        try {
+            Entry entry = getDirectoryService().getPartitionNexus().lookup( lookupContext );
+            return entry != null ? IAMAccountIndex.Account.fromEntry(entry) : null;
+        } catch (LdapNoSuchObjectException e) {
+            return null;
+        }
+    }
 
+    private LdapPrincipal authenticateIAM(BindOperationContext bindContext, IAMAccountIndex.Account account,
+                                          IoSession session, SocketAddress clientAddress) throws Exception {
         byte[] password = bindContext.getCredentials();
+        String secret = new String(password);
 
-        LookupOperationContext lookupContext = new LookupOperationContext( getDirectoryService().getAdminSession(),
-                bindContext.getDn(), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+        if (throttle.isRecentFailure(bindContext.getDn(), secret)) {
+            String message = I18n.err( I18n.ERR_230, bindContext.getDn().getName() );
+            LOG.debug( message + " (repeated failure)" );
+            throw new LdapAuthenticationException( message );
+        }
+        if (!throttle.allow(bindContext.getDn(), clientAddress)) {
+            LOG.warn("Throttled bind of " + bindContext.getDn() + " from " + clientAddress);
+            throw new LdapAuthenticationException("Too many bind attempts, try again later");
+        }
 
-        Entry userEntry = getDirectoryService().getPartitionNexus().lookup( lookupContext );
+        if (validator.verifyIAMPassword(account, secret)) {
+            String verifier = validator.createVerifier(account, secret);
+            if (verifier != null && poller != null) {
+                poller.storeVerifier(bindContext.getDn(), verifier);
+            }
+            LookupOperationContext lookupContext = new LookupOperationContext( getDirectoryService().getAdminSession(),
+                    bindContext.getDn(), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+
+            Entry userEntry = getDirectoryService().getPartitionNexus().lookup( lookupContext );
 
-        if (validator.verifyIAMPassword(userEntry, new String(password))) {
             LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
                     AuthenticationLevel.SIMPLE, password);
-            IoSession session = bindContext.getIoSession();
-
             if ( session != null )
             {
-                SocketAddress clientAddress = session.getRemoteAddress();
                 principal.setClientAddress( clientAddress );
                 SocketAddress serverAddress = session.getServiceAddress();
                 principal.setServerAddress( serverAddress );
@@ -110,17 +280,10 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
             return principal;
         } else {
             // Bad password ...
+            throttle.recordFailure(bindContext.getDn(), secret);
             String message = I18n.err( I18n.ERR_230, bindContext.getDn().getName() );
             LOG.info( message );
             throw new LdapAuthenticationException( message );
         }
     }
-
-    private boolean isAWSAccount(BindOperationContext bindContext) throws LdapException {
-        LookupOperationContext lookupContext = new LookupOperationContext( getDirectoryService().getAdminSession(),
-                bindContext.getDn(), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
-
-        Entry userEntry = getDirectoryService().getPartitionNexus().lookup( lookupContext );
-        return userEntry.hasObjectClass("iamaccount");
-    }
 }
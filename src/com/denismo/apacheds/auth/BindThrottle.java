@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.apacheds.auth;
+
+import com.denismo.aws.iam.BridgeConfig;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Protects the IAM quota from binds against IAM accounts. Each bind DN and each client address gets a
+ * token bucket, the buckets being striped over fixed arrays so that they take no locks and no memory per
+ * client. Secrets that recently failed for a DN are remembered as salted fingerprints, so repeating them
+ * is rejected without going to IAM.
+ */
+public class BindThrottle {
+    private static final Logger LOG = LoggerFactory.getLogger(BindThrottle.class);
+    private static final int STRIPES = 4096;
+    private static final int FAILURE_SLOTS = 65536;
+
+    private final TokenBuckets dnBuckets = new TokenBuckets(STRIPES);
+    private final TokenBuckets addressBuckets = new TokenBuckets(STRIPES);
+    // Each slot holds the top 40 bits of a failure fingerprint and the 24-bit second it expires at
+    private final AtomicLongArray failures = new AtomicLongArray(FAILURE_SLOTS);
+    private final long origin = System.currentTimeMillis();
+    private final byte[] salt = new byte[16];
+    private long failureTTL = 300;
+    private final AtomicLong throttledByDn = new AtomicLong();
+    private final AtomicLong throttledByAddress = new AtomicLong();
+    private final AtomicLong repeatedFailures = new AtomicLong();
+
+    public BindThrottle() {
+        new SecureRandom().nextBytes(salt);
+        dnBuckets.setRate(30, 10);
+        addressBuckets.setRate(600, 100);
+    }
+
+    public void readConfig(DirectoryService directory) {
+        try {
+            Entry config = BridgeConfig.read(directory);
+            dnBuckets.setRate(BridgeConfig.getInt(config, "bindDnRate", 30), BridgeConfig.getInt(config, "bindDnBurst", 10));
+            addressBuckets.setRate(BridgeConfig.getInt(config, "bindAddressRate", 600), BridgeConfig.getInt(config, "bindAddressBurst", 100));
+            failureTTL = BridgeConfig.getLong(config, "bindFailureTTL", 300);
+        } catch (Throwable e) {
+            LOG.error("Exception reading config for BindThrottle", e);
+        }
+    }
+
+    /**
+     * Takes a token from the buckets of the DN and of the client address, or from neither of them.
+     *
+     * @return false if either bucket is empty
+     */
+    public boolean allow(Dn dn, SocketAddress clientAddress) {
+        int dnHash = dn.getNormName().hashCode();
+        String address = addressOf(clientAddress);
+        if (address != null && !addressBuckets.hasToken(address.hashCode())) {
+            throttledByAddress.incrementAndGet();
+            return false;
+        }
+        if (!dnBuckets.tryAcquire(dnHash)) {
+            throttledByDn.incrementAndGet();
+            return false;
+        }
+        if (address != null && !addressBuckets.tryAcquire(address.hashCode())) {
+            // The address bucket emptied since it was checked, give the DN token back
+            dnBuckets.refund(dnHash);
+            throttledByAddress.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the secret failed for the DN within the failure TTL
+     */
+    public boolean isRecentFailure(Dn dn, String secret) {
+        if (failureTTL <= 0) return false;
+        long fingerprint = fingerprint(dn, secret);
+        long slot = failures.get(slot(fingerprint));
+        long remaining = ((slot & 0xFFFFFF) - now()) & 0xFFFFFF;
+        if ((slot >>> 24) == (fingerprint >>> 24) && remaining > 0 && remaining <= failureTTL) {
+            repeatedFailures.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public void recordFailure(Dn dn, String secret) {
+        if (failureTTL <= 0) return;
+        long fingerprint = fingerprint(dn, secret);
+        long expires = (now() + failureTTL) & 0xFFFFFF;
+        failures.set(slot(fingerprint), (fingerprint >>> 24 << 24) | expires);
+    }
+
+    /**
+     * @return seconds since the throttle was created, wrapping at 24 bits
+     */
+    private long now() {
+        return ((System.currentTimeMillis() - origin) / 1000) & 0xFFFFFF;
+    }
+
+    private static int slot(long fingerprint) {
+        return (int) fingerprint & (FAILURE_SLOTS - 1);
+    }
+
+    private long fingerprint(Dn dn, String secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(dn.getNormName().getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(secret.getBytes("UTF-8"));
+            byte[] hash = digest.digest();
+            long fingerprint = 0;
+            for (int i = 0; i < 8; i++) {
+                fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+            }
+            return fingerprint;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String addressOf(SocketAddress clientAddress) {
+        if (clientAddress instanceof InetSocketAddress && ((InetSocketAddress) clientAddress).getAddress() != null) {
+            // The port changes with every connection, only the host identifies the client
+            return ((InetSocketAddress) clientAddress).getAddress().getHostAddress();
+        }
+        return clientAddress != null ? clientAddress.toString() : null;
+    }
+
+    public long getThrottledByDn() {
+        return throttledByDn.get();
+    }
+
+    public long getThrottledByAddress() {
+        return throttledByAddress.get();
+    }
+
+    public long getRepeatedFailures() {
+        return repeatedFailures.get();
+    }
+
+    /**
+     * Token buckets kept as the theoretical arrival time of the next token (GCRA), one per stripe, updated
+     * with compare-and-set.
+     */
+    private static class TokenBuckets {
+        private final AtomicLongArray next;
+        private final long origin = System.nanoTime();
+        private volatile long interval;
+        private volatile long tolerance;
+
+        TokenBuckets(int stripes) {
+            next = new AtomicLongArray(stripes);
+        }
+
+        /**
+         * @param perMinute tokens added per minute, 0 to disable the buckets
+         * @param burst tokens a full bucket holds
+         */
+        void setRate(int perMinute, int burst) {
+            interval = perMinute > 0 ? 60000000000L / perMinute : 0;
+            tolerance = interval * (Math.max(1, burst) - 1);
+        }
+
+        boolean tryAcquire(int hash) {
+            long interval = this.interval;
+            if (interval <= 0) return true;
+            int i = stripe(hash);
+            long now = System.nanoTime() - origin;
+            while (true) {
+                long tat = next.get(i);
+                long start = Math.max(tat, now);
+                if (start - now > tolerance) return false;
+                if (next.compareAndSet(i, tat, start + interval)) return true;
+            }
+        }
+
+        boolean hasToken(int hash) {
+            if (interval <= 0) return true;
+            long now = System.nanoTime() - origin;
+            return Math.max(next.get(stripe(hash)), now) - now <= tolerance;
+        }
+
+        void refund(int hash) {
+            long interval = this.interval;
+            if (interval <= 0) return;
+            int i = stripe(hash);
+            while (true) {
+                long tat = next.get(i);
+                if (next.compareAndSet(i, tat, tat - interval)) return;
+            }
+        }
+
+        private int stripe(int hash) {
+            return (hash ^ (hash >>> 16)) & (next.length() - 1);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.apacheds.cache;
+
+import com.denismo.aws.iam.BridgeConfig;
+import com.denismo.aws.iam.IAMGeneration;
+import com.denismo.aws.iam.IAMProvisioning;
+import com.denismo.aws.iam.PasswordVerifier;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.*;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.BaseEntryFilteringCursor;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers the searches NSS and PAM clients repeat all day (getpwnam, getpwuid, getgrgid, getgrnam,
+ * initgroups and enumeration of the users and groups) from memory. Only searches under the IAM rootDNs
+ * of the config entry and of the additional accounts, whose filters are made of equality, presence and
+ * and/or on the account attributes, are cached. Results are dropped as soon as the IAM entries change,
+ * which the poller signals through {@link IAMGeneration} and which writes passing through this
+ * interceptor signal themselves. An exact uid lookup that finds nothing gives the poller of the account
+ * searched a chance to provision the account just in time.
+ * <p>
+ * It must be the last interceptor, as it reads misses straight from the partitions. The authorization
+ * interceptors before it still filter the cached results for every search.
+ */
+public class IAMSearchCacheInterceptor extends BaseInterceptor {
+    private static final Logger LOG = LoggerFactory.getLogger(IAMSearchCacheInterceptor.class);
+    private static final String[] CACHED_ATTRIBUTES = {
+            SchemaConstants.OBJECT_CLASS_AT, "uid", "uidNumber", "gidNumber", "memberUid", "cn", "accessKey"
+    };
+
+    private final ConcurrentMap<String, Result> results = new ConcurrentHashMap<String, Result>();
+    private final Set<String> cachedOids = new HashSet<String>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long clearedGeneration;
+    private List<Dn> rootDNs = new ArrayList<Dn>();
+    private String uidOid;
+    private int maxSize = 10000;
+
+    public IAMSearchCacheInterceptor() {
+        super("iamSearchCacheInterceptor");
+    }
+
+    @Override
+    public void init(DirectoryService directoryService) throws LdapException {
+        super.init(directoryService);
+        uidOid = directoryService.getSchemaManager().getAttributeType("uid").getOid();
+        for (String id : CACHED_ATTRIBUTES) {
+            cachedOids.add(directoryService.getSchemaManager().getAttributeType(id).getOid());
+        }
+        try {
+            Entry config = BridgeConfig.read(directoryService);
+            rootDNs = BridgeConfig.readRootDNs(directoryService);
+            maxSize = BridgeConfig.getInt(config, "searchCacheSize", maxSize);
+        } catch (Throwable e) {
+            LOG.error("Exception reading config for the IAM search cache", e);
+        }
+        if (rootDNs.isEmpty() || maxSize <= 0) {
+            LOG.info("IAM search cache is disabled");
+            rootDNs = new ArrayList<Dn>();
+        }
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        if (!isUnderRoot(searchContext.getDn()) || !isCacheable(searchContext.getFilter())) {
+            return next(searchContext);
+        }
+        long generation = IAMGeneration.current();
+        if (generation != clearedGeneration) {
+            clearedGeneration = generation;
+            results.clear();
+        }
+        String key = searchContext.getDn().getNormName() + "|" + searchContext.getScope() + "|" + searchContext.getFilter();
+        Result result = results.get(key);
+        if (result != null && result.generation == generation) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            result = new Result(generation, fetch(searchContext));
+            String uid = result.entries.isEmpty() ? uidOf(searchContext.getFilter()) : null;
+            if (uid != null && IAMProvisioning.provisionUid(searchContext.getDn(), uid)) {
+                result = new Result(IAMGeneration.current(), fetch(searchContext));
+            }
+            if (results.size() < maxSize) {
+                results.put(key, result);
+            }
+        }
+        List<Entry> entries = new ArrayList<Entry>(result.entries.size());
+        for (Entry entry : result.entries) {
+            entries.add(entry.clone());
+        }
+        return new BaseEntryFilteringCursor(new ListCursor<Entry>(entries), searchContext);
+    }
+
+    /**
+     * Runs the search for all attributes against the partitions, so that the result can serve later
+     * searches asking for other attributes.
+     */
+    private List<Entry> fetch(SearchOperationContext searchContext) throws LdapException {
+        SearchOperationContext context = new SearchOperationContext(directoryService.getAdminSession(),
+                searchContext.getDn(), searchContext.getScope(), searchContext.getFilter(),
+                SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+        EntryFilteringCursor cursor = directoryService.getPartitionNexus().search(context);
+        try {
+            List<Entry> entries = new ArrayList<Entry>();
+            cursor.beforeFirst();
+            while (cursor.next()) {
+                entries.add(cursor.get());
+            }
+            return entries;
+        } catch (LdapException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new LdapOtherException(e.getMessage(), e);
+        } finally {
+            try {
+                cursor.close();
+            } catch (Exception e) {
+                LOG.warn("Exception closing the IAM search cursor", e);
+            }
+        }
+    }
+
+    private boolean isUnderRoot(Dn dn) {
+        for (Dn rootDN : rootDNs) {
+            if (dn.equals(rootDN) || dn.isDescendantOf(rootDN)) return true;
+        }
+        return false;
+    }
+
+    private boolean isCacheable(ExprNode node) {
+        if (node instanceof ObjectClassNode) {
+            return true;
+        }
+        if (node instanceof AndNode || node instanceof OrNode) {
+            for (ExprNode child : ((BranchNode) node).getChildren()) {
+                if (!isCacheable(child)) return false;
+            }
+            return true;
+        }
+        if (node instanceof EqualityNode || node instanceof PresenceNode) {
+            return cachedOids.contains(((LeafNode) node).getAttributeType().getOid());
+        }
+        return false;
+    }
+
+    /**
+     * @return the uid the filter asks for, if it is an exact uid lookup
+     */
+    private String uidOf(ExprNode node) {
+        if (node instanceof EqualityNode && ((EqualityNode<?>) node).getAttributeType().getOid().equals(uidOid)) {
+            return ((EqualityNode<?>) node).getValue().getString();
+        }
+        if (node instanceof AndNode) {
+            for (ExprNode child : ((AndNode) node).getChildren()) {
+                String uid = uidOf(child);
+                if (uid != null) return uid;
+            }
+        }
+        return null;
+    }
+
+    private void invalidate(Dn dn) {
+        if (isUnderRoot(dn)) {
+            IAMGeneration.advance();
+        }
+    }
+
+    @Override
+    public void add(AddOperationContext addContext) throws LdapException {
+        next(addContext);
+        invalidate(addContext.getDn());
+    }
+
+    @Override
+    public void delete(DeleteOperationContext deleteContext) throws LdapException {
+        next(deleteContext);
+        invalidate(deleteContext.getDn());
+    }
+
+    @Override
+    public void modify(ModifyOperationContext modifyContext) throws LdapException {
+        next(modifyContext);
+        if (!isVerifierOnly(modifyContext.getModItems())) {
+            invalidate(modifyContext.getDn());
+        }
+    }
+
+    /**
+     * @return true if the modifications only store a credential verifier, which no cached result holds
+     */
+    private boolean isVerifierOnly(List<Modification> mods) {
+        for (Modification mod : mods) {
+            AttributeType type = mod.getAttribute().getAttributeType();
+            String name = type != null ? type.getName() : mod.getAttribute().getUpId();
+            if (!PasswordVerifier.ATTRIBUTE.equalsIgnoreCase(name)) return false;
+        }
+        return !mods.isEmpty();
+    }
+
+    @Override
+    public void rename(RenameOperationContext renameContext) throws LdapException {
+        next(renameContext);
+        invalidate(renameContext.getDn());
+    }
+
+    @Override
+    public void move(MoveOperationContext moveContext) throws LdapException {
+        next(moveContext);
+        invalidate(moveContext.getDn());
+        invalidate(moveContext.getNewSuperior());
+    }
+
+    @Override
+    public void moveAndRename(MoveAndRenameOperationContext moveAndRenameContext) throws LdapException {
+        next(moveAndRenameContext);
+        invalidate(moveAndRenameContext.getDn());
+        invalidate(moveAndRenameContext.getNewSuperiorDn());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    private static class Result {
+        final long generation;
+        final List<Entry> entries;
+
+        private Result(long generation, List<Entry> entries) {
+            this.generation = generation;
+            this.entries = entries;
+        }
+    }
+}
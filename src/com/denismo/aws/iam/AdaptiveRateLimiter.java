@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.AmazonServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket plus concurrency limit shared by the workers making per-user IAM calls. Both are halved
+ * whenever AWS throttles a call and grow back gradually while calls succeed, so the poller backs off
+ * instead of exhausting the API quota it shares with other tooling. Waiting callers park on a lock
+ * condition rather than a monitor, so virtual threads waiting here do not pin their carrier threads. A caller
+ * short of a token sleeps until the next token is due; a caller short of a slot sleeps until one is released.
+ */
+public class AdaptiveRateLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    private final String name;
+    private final double maxRate;
+    private final int maxConcurrency;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private double rate;
+    private int concurrency;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private int inFlight;
+    private int successes;
+
+    /**
+     * @param maxRate calls per second allowed while AWS does not throttle
+     * @param maxConcurrency calls allowed in flight while AWS does not throttle
+     */
+    public AdaptiveRateLimiter(String name, double maxRate, int maxConcurrency) {
+        this.name = name;
+        this.maxRate = maxRate;
+        this.maxConcurrency = maxConcurrency;
+        this.rate = maxRate;
+        this.concurrency = maxConcurrency;
+        this.tokens = maxRate;
+    }
+
+    public static boolean isThrottling(Throwable e) {
+        if (!(e instanceof AmazonServiceException)) return false;
+        AmazonServiceException ase = (AmazonServiceException) e;
+        return "Throttling".equals(ase.getErrorCode()) || "ThrottlingException".equals(ase.getErrorCode())
+                || "RequestLimitExceeded".equals(ase.getErrorCode()) || ase.getStatusCode() == 429;
+    }
+
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                refill();
+                if (tokens >= 1 && inFlight < concurrency) {
+                    tokens -= 1;
+                    inFlight++;
+                    return;
+                }
+                if (inFlight >= concurrency) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos((long) Math.ceil((1 - tokens) * 1e9 / rate));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(boolean throttled) {
+        lock.lock();
+        try {
+            inFlight--;
+            int before = concurrency;
+            if (throttled) {
+                successes = 0;
+                concurrency = Math.max(1, concurrency / 2);
+                rate = Math.max(0.5, rate / 2);
+                tokens = Math.min(tokens, 0);
+                LOG.warn("AWS throttled " + name + ", backing off to " + concurrency + " concurrent calls at " + rate + " calls/s");
+            } else if (++successes >= concurrency && (concurrency < maxConcurrency || rate < maxRate)) {
+                successes = 0;
+                concurrency = Math.min(maxConcurrency, concurrency + 1);
+                rate = Math.min(maxRate, rate + maxRate / 10);
+                LOG.debug("Raising {} to {} concurrent calls at {} calls/s", new Object[] {name, concurrency, rate});
+            }
+            if (concurrency > before) {
+                changed.signalAll();
+            } else if (inFlight < concurrency) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getConcurrency() {
+        lock.lock();
+        try {
+            return concurrency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getRate() {
+        lock.lock();
+        try {
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+}
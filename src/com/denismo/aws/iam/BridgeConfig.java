@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Access to the authenticator configuration entry shared by the poller and the validator.
+ */
+public final class BridgeConfig {
+    public static final String CONFIG_DN = "cn=config,ads-authenticatorid=awsiamauthenticator,ou=authenticators,ads-interceptorId=authenticationInterceptor,ou=interceptors,ads-directoryServiceId=default,ou=config";
+    // Attributes of the config entry that additional accounts do not inherit
+    private static final String[] ACCOUNT_ATTRIBUTES = {
+            "rootDN", "roleArn", "eventQueueUrl", "eventQueueEndpoint", "pollRequest"
+    };
+
+    private BridgeConfig() {
+    }
+
+    public static Entry read(DirectoryService directory) throws LdapException {
+        LookupOperationContext lookupContext = new LookupOperationContext( directory.getAdminSession(),
+                directory.getDnFactory().create(CONFIG_DN),
+                SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+        return directory.getPartitionNexus().lookup(lookupContext);
+    }
+
+    /**
+     * @return the iamaccountconfig entries of the additional accounts, directly below the config entry
+     */
+    public static List<Entry> readAccounts(DirectoryService directory) throws LdapException, ParseException, IOException, CursorException {
+        ExprNode filter = FilterParser.parse(directory.getSchemaManager(), "(objectClass=iamaccountconfig)");
+        filter.accept(new FilterNormalizingVisitor(new ConcreteNameComponentNormalizer(directory.getSchemaManager()),
+                directory.getSchemaManager()));
+        SearchOperationContext context = new SearchOperationContext(directory.getAdminSession(),
+                directory.getDnFactory().create(CONFIG_DN), SearchScope.ONELEVEL, filter,
+                SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+        EntryFilteringCursor cursor = directory.getPartitionNexus().search(context);
+        List<Entry> accounts = new ArrayList<Entry>();
+        try {
+            cursor.beforeFirst();
+            while (cursor.next()) {
+                accounts.add(cursor.get());
+            }
+        } finally {
+            cursor.close();
+        }
+        return accounts;
+    }
+
+    /**
+     * @return the config of an additional account: the attributes of its entry over those of the config
+     * entry, without the ones that only apply to the account of the config entry
+     */
+    public static Entry forAccount(Entry config, Entry account) throws LdapException {
+        Entry merged = config != null ? config.clone() : account.clone();
+        merged.removeAttributes(ACCOUNT_ATTRIBUTES);
+        for (Attribute attr : account) {
+            merged.put(attr.clone());
+        }
+        merged.setDn(account.getDn());
+        return merged;
+    }
+
+    /**
+     * @return the rootDNs of the config entry and of the additional accounts
+     */
+    public static List<Dn> readRootDNs(DirectoryService directory) throws LdapException, ParseException, IOException, CursorException {
+        List<Dn> roots = new ArrayList<Dn>();
+        String root = getString(read(directory), "rootDN", null);
+        if (root != null) {
+            roots.add(directory.getDnFactory().create(root));
+        }
+        for (Entry account : readAccounts(directory)) {
+            root = getString(account, "rootDN", null);
+            if (root != null) {
+                roots.add(directory.getDnFactory().create(root));
+            }
+        }
+        return roots;
+    }
+
+    public static String getString(Entry config, String name, String defaultValue) throws LdapException {
+        Attribute attr = config != null ? config.get(name) : null;
+        return attr != null ? attr.getString() : defaultValue;
+    }
+
+    public static int getInt(Entry config, String name, int defaultValue) throws LdapException {
+        String value = getString(config, name, null);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    public static long getLong(Entry config, String name, long defaultValue) throws LdapException {
+        String value = getString(config, name, null);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    public static boolean getBoolean(Entry config, String name, boolean defaultValue) throws LdapException {
+        String value = getString(config, name, null);
+        return value != null ? "TRUE".equalsIgnoreCase(value.trim()) : defaultValue;
+    }
+}
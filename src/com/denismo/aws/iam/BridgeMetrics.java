@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, latency histograms and gauges of the bridge, shared by all of its components. Recording is a
+ * few atomic increments, so it is cheap enough for every bind. Everything is readable through JMX as
+ * <code>com.denismo.aws.iam:type=BridgeMetrics</code> and through the monitor partition.
+ */
+public final class BridgeMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeMetrics.class);
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    public interface Gauge {
+        long get();
+    }
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("com.denismo.aws.iam:type=BridgeMetrics"));
+        } catch (Exception e) {
+            LOG.warn("Unable to register the metrics MBean", e);
+        }
+    }
+
+    private BridgeMetrics() {
+    }
+
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    public static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return the current value of every metric by name, histograms expanded into count, mean, p50, p99 and max
+     * in microseconds
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            Histogram h = histogram.getValue();
+            String name = histogram.getKey();
+            values.put(name + ".count", h.getCount());
+            values.put(name + ".meanMicros", h.getMean());
+            values.put(name + ".p50Micros", h.getPercentile(0.5));
+            values.put(name + ".p99Micros", h.getPercentile(0.99));
+            values.put(name + ".maxMicros", h.getMax());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            try {
+                values.put(gauge.getKey(), gauge.getValue().get());
+            } catch (RuntimeException e) {
+                LOG.debug("Exception reading gauge " + gauge.getKey(), e);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Latency histogram with power of two buckets in microseconds. Percentiles are reported as the upper
+     * bound of the bucket they fall in.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param startNanos the System.nanoTime() the measured operation started at
+         */
+        public void recordSince(long startNanos) {
+            record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+        public void record(long micros) {
+            if (micros < 0) micros = 0;
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long current;
+            while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMean() {
+            long n = count.get();
+            return n > 0 ? sum.get() / n : 0;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(n * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : 1L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * Read-only MBean whose attributes are the metrics present when it is read.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(BridgeMetrics.class.getName(), "AWS IAM bridge metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+}
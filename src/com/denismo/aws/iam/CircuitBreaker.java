@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calls to AWS after a run of consecutive failures or timeouts. Once open, a single trial call
+ * is let through after the open period; its outcome either closes the breaker or re-opens it. A trial that
+ * records no outcome within the trial timeout is given up and the next call becomes a new trial.
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private int failureThreshold = 5;
+    private long openPeriod = 30000;
+    private long trialTimeout = 3000;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private long trialStartedAt;
+
+    public CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setOpenPeriod(long openPeriod) {
+        this.openPeriod = openPeriod;
+    }
+
+    public void setTrialTimeout(long trialTimeout) {
+        this.trialTimeout = trialTimeout;
+    }
+
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt >= openPeriod) {
+                    transition(State.HALF_OPEN);
+                    trialStartedAt = now;
+                    return true;
+                }
+                return false;
+            default:
+                if (now - trialStartedAt >= trialTimeout) {
+                    LOG.warn("Circuit breaker " + name + " trial call did not complete in " + trialTimeout + "ms, allowing another");
+                    trialStartedAt = now;
+                    return true;
+                }
+                // A trial call is already in flight
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            openedAt = System.currentTimeMillis();
+            transition(State.OPEN);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void transition(State newState) {
+        LOG.warn("Circuit breaker " + name + " changed from " + state + " to " + newState);
+        state = newState;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the outcome of recent IAM credential verifications so that repeated binds
+ * do not go to AWS. Entries are keyed on the access key and a salted hash of the secret,
+ * the secret itself is never kept. The salt is generated per process and never persisted.
+ */
+public class CredentialCache {
+    private final byte[] salt = new byte[16];
+    private long positiveTTL = 300000;
+    private long negativeTTL = 30000;
+    private int maxSize = 10000;
+
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    public CredentialCache() {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public void setPositiveTTL(long positiveTTL) {
+        this.positiveTTL = positiveTTL;
+    }
+
+    public void setNegativeTTL(long negativeTTL) {
+        this.negativeTTL = negativeTTL;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public String key(String accessKey, String secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(secret.getBytes("UTF-8"));
+            return accessKey + ":" + Base64.encodeBase64String(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached verification result, or null if there is none or it has expired
+     */
+    public synchronized Boolean get(String key) {
+        Result result = results.get(key);
+        if (result == null) return null;
+        if (result.expires < System.currentTimeMillis()) {
+            // Expired successes are kept until evicted to serve as last known good credentials
+            if (!result.valid) {
+                results.remove(key);
+            }
+            return null;
+        }
+        return result.valid;
+    }
+
+    /**
+     * @return true if the credentials were successfully verified within maxAge milliseconds, even if
+     * that result has since expired
+     */
+    public synchronized boolean isLastKnownGood(String key, long maxAge) {
+        Result result = results.get(key);
+        return result != null && result.valid && System.currentTimeMillis() - result.verified <= maxAge;
+    }
+
+    public synchronized void put(String key, boolean valid) {
+        long ttl = valid ? positiveTTL : negativeTTL;
+        if (ttl <= 0) return;
+        long now = System.currentTimeMillis();
+        results.put(key, new Result(valid, now, now + ttl));
+    }
+
+    /**
+     * Drops every cached result for the access key, called when IAM reports the key has changed.
+     */
+    public synchronized void invalidate(String accessKey) {
+        String prefix = accessKey + ":";
+        for (Iterator<String> it = results.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    private static class Result {
+        final boolean valid;
+        final long verified;
+        final long expires;
+
+        private Result(boolean valid, long verified, long expires) {
+            this.valid = valid;
+            this.verified = verified;
+            this.expires = expires;
+        }
+    }
+}
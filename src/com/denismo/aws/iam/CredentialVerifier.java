@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.auth.AWSCredentials;
+
+/**
+ * Checks a set of AWS credentials with AWS itself.
+ */
+public interface CredentialVerifier {
+    /**
+     * @return true if AWS accepted the credentials, false if it rejected them, or null if AWS
+     * could not be reached
+     * @throws RuntimeException if AWS answered with an error that says nothing about the credentials, which
+     * is handled like AWS being unreachable
+     */
+    Boolean verify(AWSCredentials credentials);
+
+    void shutdown();
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Derives IDs from a hash of the ARN, so that every node computes the same IDs without any I/O.
+ *
+ * Colliding names are moved to the next free probe of their hash and a warning is logged. Names are
+ * always resolved in sorted order, so nodes that see the same set of names assign the same IDs, but a
+ * probed name can change ID after a restart if the set of names has changed in the meantime.
+ */
+public class HashIDAllocator implements IDAllocator {
+    private static final Logger LOG = LoggerFactory.getLogger(HashIDAllocator.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long base;
+    private final long range;
+    private final Map<String, String> ids = new HashMap<String, String>();
+    private final Map<String, String> owners = new HashMap<String, String>();
+
+    /**
+     * @param base lowest ID handed out
+     * @param range number of IDs above base the hash is spread over
+     */
+    public HashIDAllocator(long base, long range) {
+        this.base = base;
+        this.range = range;
+    }
+
+    @Override
+    public void init(long timeout) {
+    }
+
+    @Override
+    public synchronized String allocateUID(String name) {
+        String id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        for (int probe = 0; ; probe++) {
+            id = String.valueOf(base + hash(probe == 0 ? name : name + "#" + probe) % range);
+            String owner = owners.get(id);
+            if (owner == null) {
+                owners.put(id, name);
+                ids.put(name, id);
+                return id;
+            }
+            LOG.warn("ID " + id + " of " + name + " collides with " + owner + ", probing");
+        }
+    }
+
+    @Override
+    public synchronized Map<String, String> allocateUIDs(Collection<String> names) {
+        List<String> sorted = new ArrayList<String>(names);
+        Collections.sort(sorted);
+        Map<String, String> result = new HashMap<String, String>();
+        for (String name : sorted) {
+            result.put(name, allocateUID(name));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(UTF8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash & Long.MAX_VALUE;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
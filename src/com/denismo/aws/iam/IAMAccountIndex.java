@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory map of the IAM account entries (users and roles) kept up to date by the poller, holding only
+ * what is needed to classify and verify a bind so that the authenticator does not have to go to the partition.
+ */
+public class IAMAccountIndex {
+    private final Map<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+
+    public Account get(Dn dn) {
+        return accounts.get(dn.getNormName());
+    }
+
+    public void put(Entry entry) throws LdapException {
+        Account account = Account.fromEntry(entry);
+        if (account != null) {
+            accounts.put(entry.getDn().getNormName(), account);
+        } else {
+            remove(entry.getDn());
+        }
+    }
+
+    /**
+     * Records a new credential verifier for the account, if it is still in the index.
+     */
+    public void setVerifier(Dn dn, String verifier) {
+        Account account = accounts.get(dn.getNormName());
+        if (account != null) {
+            accounts.put(dn.getNormName(), new Account(account.uid, account.accessKey, account.role, verifier));
+        }
+    }
+
+    public void remove(Dn dn) {
+        accounts.remove(dn.getNormName());
+    }
+
+    public int size() {
+        return accounts.size();
+    }
+
+    public static class Account {
+        private final String uid;
+        private final String accessKey;
+        private final boolean role;
+        private final String verifier;
+
+        public Account(String uid, String accessKey, boolean role) {
+            this(uid, accessKey, role, null);
+        }
+
+        public Account(String uid, String accessKey, boolean role, String verifier) {
+            this.uid = uid;
+            this.accessKey = accessKey;
+            this.role = role;
+            this.verifier = verifier;
+        }
+
+        /**
+         * @return the bind-relevant part of the entry, or null if the entry is not an IAM account
+         */
+        public static Account fromEntry(Entry entry) throws LdapException {
+            if (!entry.hasObjectClass("iamaccount")) return null;
+            Attribute uid = entry.get("uid");
+            Attribute accessKey = entry.get("accessKey");
+            Attribute verifier = entry.get(PasswordVerifier.ATTRIBUTE);
+            return new Account(uid != null ? uid.getString() : null, accessKey != null ? accessKey.getString() : null,
+                    entry.hasObjectClass("iamrole"), verifier != null ? verifier.getString() : null);
+        }
+
+        public String getUid() {
+            return uid;
+        }
+
+        public String getAccessKey() {
+            return accessKey;
+        }
+
+        public boolean isRole() {
+            return role;
+        }
+
+        public String getVerifier() {
+            return verifier;
+        }
+    }
+}
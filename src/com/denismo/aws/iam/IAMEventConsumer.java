@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads IAM change events delivered by CloudTrail through EventBridge to an SQS queue and has the poller
+ * refresh only the users, roles and groups they name. A message is deleted only once its refresh has been
+ * applied, so a failed refresh is retried when the message becomes visible again. Messages are kept
+ * invisible while their refreshes wait behind a poll, so they are not delivered twice. Events that cannot
+ * be narrowed down to one principal queue a full poll instead.
+ */
+public class IAMEventConsumer implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(IAMEventConsumer.class);
+    private static final long REFRESH_TIMEOUT = 300;
+    // Seconds a received message stays invisible, renewed every third of it while its refresh is pending
+    private static final int VISIBILITY_TIMEOUT = 60;
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final AmazonSQSClient sqs;
+    private final String queueUrl;
+    private final boolean syncRoles;
+    private final LDAPIAMPoller poller;
+    private volatile boolean running;
+    private Thread thread;
+
+    public IAMEventConsumer(AWSCredentialsProvider credentials, String queueUrl, String endpoint, boolean syncRoles,
+                            LDAPIAMPoller poller) {
+        this.sqs = new AmazonSQSClient(credentials);
+        sqs.addRequestHandler(new MetricsRequestHandler("aws.sqs"));
+        if (endpoint != null) {
+            sqs.setEndpoint(endpoint);
+        }
+        this.queueUrl = queueUrl;
+        this.syncRoles = syncRoles;
+        this.poller = poller;
+    }
+
+    public synchronized void start() {
+        running = true;
+        thread = new Thread(this, "iam-events");
+        thread.setDaemon(true);
+        thread.start();
+        LOG.info("Consuming IAM change events from " + queueUrl);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        sqs.shutdown();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                        .withMaxNumberOfMessages(10).withWaitTimeSeconds(20).withVisibilityTimeout(VISIBILITY_TIMEOUT)).getMessages();
+                Map<Message, List<Future<?>>> refreshes = new LinkedHashMap<Message, List<Future<?>>>();
+                for (Message message : messages) {
+                    List<Future<?>> queued = queueRefreshes(message.getBody());
+                    if (queued != null) {
+                        refreshes.put(message, queued);
+                    }
+                }
+                List<DeleteMessageBatchRequestEntry> handled = new ArrayList<DeleteMessageBatchRequestEntry>();
+                for (Message message : awaitRefreshes(refreshes)) {
+                    handled.add(new DeleteMessageBatchRequestEntry(message.getMessageId(), message.getReceiptHandle()));
+                }
+                if (!handled.isEmpty()) {
+                    sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, handled));
+                }
+            } catch (Throwable e) {
+                if (!running) break;
+                LOG.error("Exception consuming IAM change events", e);
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the refreshes queued for the event, none if it is of no interest, or null if it should be retried
+     */
+    private List<Future<?>> queueRefreshes(String body) {
+        try {
+            List<Future<?>> refreshes = new ArrayList<Future<?>>();
+            for (Future<?> refresh : dispatch(body)) {
+                if (refresh != null) {
+                    refreshes.add(refresh);
+                }
+            }
+            return refreshes;
+        } catch (JsonProcessingException e) {
+            LOG.warn("Dropping malformed IAM change event: " + e.getMessage());
+            return Collections.emptyList();
+        } catch (Exception e) {
+            LOG.warn("Unable to queue the refresh of an IAM change event, it will be retried", e);
+            return null;
+        }
+    }
+
+    /**
+     * Waits at most REFRESH_TIMEOUT for the refreshes of the messages, extending the visibility of the
+     * messages not yet deleted so that SQS does not deliver them again meanwhile.
+     *
+     * @return the messages whose refreshes were all applied
+     */
+    private List<Message> awaitRefreshes(Map<Message, List<Future<?>>> refreshes) throws InterruptedException {
+        Set<Message> applied = new LinkedHashSet<Message>(refreshes.keySet());
+        long deadline = System.currentTimeMillis() + REFRESH_TIMEOUT * 1000;
+        long extendAt = System.currentTimeMillis() + VISIBILITY_TIMEOUT * 1000 / 3;
+        for (Map.Entry<Message, List<Future<?>>> message : refreshes.entrySet()) {
+            for (Future<?> refresh : message.getValue()) {
+                boolean done = false;
+                while (!done) {
+                    long now = System.currentTimeMillis();
+                    if (now >= deadline) {
+                        LOG.warn("IAM change event was not applied in " + REFRESH_TIMEOUT + "s, it will be retried");
+                        break;
+                    }
+                    try {
+                        refresh.get(Math.max(0, Math.min(extendAt, deadline) - now), TimeUnit.MILLISECONDS);
+                        done = true;
+                    } catch (TimeoutException e) {
+                        if (System.currentTimeMillis() >= extendAt) {
+                            extendVisibility(applied);
+                            extendAt = System.currentTimeMillis() + VISIBILITY_TIMEOUT * 1000 / 3;
+                        }
+                    } catch (ExecutionException e) {
+                        LOG.warn("Unable to apply IAM change event, it will be retried", e.getCause());
+                        break;
+                    }
+                }
+                if (!done) {
+                    applied.remove(message.getKey());
+                    break;
+                }
+            }
+        }
+        return new ArrayList<Message>(applied);
+    }
+
+    private void extendVisibility(Set<Message> messages) {
+        if (messages.isEmpty()) return;
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+        for (Message message : messages) {
+            entries.add(new ChangeMessageVisibilityBatchRequestEntry(message.getMessageId(), message.getReceiptHandle())
+                    .withVisibilityTimeout(VISIBILITY_TIMEOUT));
+        }
+        try {
+            sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+        } catch (Exception e) {
+            LOG.warn("Unable to extend the visibility of IAM change events, they may be delivered again", e);
+        }
+    }
+
+    private List<Future<?>> dispatch(String body) throws IOException {
+        JsonNode event = JSON.readTree(body);
+        if (event != null && event.has("Message") && !event.has("detail")) {
+            // Delivered through SNS
+            event = JSON.readTree(event.path("Message").asText());
+        }
+        JsonNode detail = event != null ? event.get("detail") : null;
+        if (detail == null || !detail.isObject() || !"iam.amazonaws.com".equals(detail.path("eventSource").asText())
+                || detail.has("errorCode")) {
+            return Collections.emptyList();
+        }
+        String name = detail.path("eventName").asText();
+        JsonNode params = detail.get("requestParameters");
+        String userName = text(params, "userName");
+        String groupName = text(params, "groupName");
+        String roleName = text(params, "roleName");
+        LOG.debug("IAM change event {}", name);
+
+        if ("CreateUser".equals(name) || "DeleteUser".equals(name) || "CreateAccessKey".equals(name)
+                || "DeleteAccessKey".equals(name) || "UpdateAccessKey".equals(name)
+                || "AddUserToGroup".equals(name) || "RemoveUserFromGroup".equals(name)) {
+            // Access key calls without a user name act on the calling user, which only a poll can tell
+            return Collections.<Future<?>>singletonList(userName != null ? poller.requestUserRefresh(userName, false) : poller.requestPoll());
+        }
+        if ("UpdateUser".equals(name)) {
+            String newUserName = text(params, "newUserName");
+            if (newUserName == null) return Collections.emptyList();
+            return Arrays.<Future<?>>asList(poller.requestUserRefresh(userName, false), poller.requestUserRefresh(newUserName, false));
+        }
+        if ("CreateGroup".equals(name) || "DeleteGroup".equals(name)) {
+            return Collections.<Future<?>>singletonList(poller.requestGroupRefresh(groupName));
+        }
+        if ("UpdateGroup".equals(name)) {
+            return Collections.<Future<?>>singletonList(poller.requestPoll());
+        }
+        if (syncRoles && ("CreateRole".equals(name) || "DeleteRole".equals(name))) {
+            return Collections.<Future<?>>singletonList(poller.requestUserRefresh(roleName, true));
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the string field of the object, or null if there is no such field
+     */
+    private static String text(JsonNode object, String field) {
+        JsonNode value = object != null ? object.get(field) : null;
+        return value != null && value.isTextual() ? value.asText() : null;
+    }
+}
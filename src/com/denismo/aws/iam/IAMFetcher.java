@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.identitymanagement.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the IAM users, groups, memberships, access keys and roles of the account.
+ *
+ * In LIST mode every user costs a ListGroupsForUser and a ListAccessKeys call. In BULK mode users, groups,
+ * memberships and roles come from a few paginated GetAccountAuthorizationDetails calls and only the access
+ * keys are read per user. If the credential report is enabled it is used to skip users without active keys
+ * and to reuse the key of users whose keys have not been rotated since the previous poll.
+ */
+public class IAMFetcher {
+    private static final Logger LOG = LoggerFactory.getLogger(IAMFetcher.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Mode { LIST, BULK }
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final AWSCredentialsProvider credentials;
+    private int concurrency = 8;
+    private AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("IAM poller", 10, concurrency);
+    private Mode mode = Mode.BULK;
+    private boolean fetchRoles;
+    private boolean useCredentialReport;
+    private String endpoint;
+    private String metricsPrefix = "aws.iam";
+    // Access key state of each user as of the previous poll, used with the credential report
+    private Map<String, KeyState> knownKeys = new HashMap<String, KeyState>();
+
+    public IAMFetcher(AWSCredentialsProvider credentials) {
+        this.credentials = credentials;
+    }
+
+    /**
+     * @param concurrency maximum number of per-user IAM calls in flight
+     * @param rate maximum number of per-user IAM calls per second
+     */
+    public void setLimits(int concurrency, double rate) {
+        this.concurrency = concurrency;
+        this.rateLimiter = new AdaptiveRateLimiter("IAM poller", rate, concurrency);
+    }
+
+    private AmazonIdentityManagementClient createClient() {
+        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(credentials);
+        client.addRequestHandler(new MetricsRequestHandler(metricsPrefix));
+        if (endpoint != null) {
+            client.setEndpoint(endpoint);
+        }
+        return client;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public void setFetchRoles(boolean fetchRoles) {
+        this.fetchRoles = fetchRoles;
+    }
+
+    public void setUseCredentialReport(boolean useCredentialReport) {
+        this.useCredentialReport = useCredentialReport;
+    }
+
+    /**
+     * @param endpoint IAM endpoint to call, or null for the default of the SDK
+     */
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @param metricsPrefix prefix of the call, throttling, error and latency metrics of the IAM calls
+     */
+    public void setMetricsPrefix(String metricsPrefix) {
+        this.metricsPrefix = metricsPrefix;
+    }
+
+    public IAMState fetch() {
+        AmazonIdentityManagementClient client = createClient();
+        try {
+            IAMState state = new IAMState();
+            if (mode == Mode.BULK) {
+                fetchAuthorizationDetails(client, state);
+            } else {
+                fetchByListing(client, state);
+            }
+            fetchAccessKeys(client, state);
+            return state;
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Reads a single user with its groups and active access key, or a single role, for provisioning it
+     * ahead of the next poll.
+     *
+     * @return the state holding only that principal, or null if IAM does not know it
+     */
+    public IAMState fetchPrincipal(String name, boolean role) {
+        AmazonIdentityManagementClient client = createClient();
+        try {
+            IAMState state = new IAMState();
+            if (role) {
+                state.getRoles().add(client.getRole(new GetRoleRequest().withRoleName(name)).getRole());
+                return state;
+            }
+            User user = client.getUser(new GetUserRequest().withUserName(name)).getUser();
+            List<String> groupNames = new ArrayList<String>();
+            ListGroupsForUserResult groups = client.listGroupsForUser(new ListGroupsForUserRequest(name));
+            while (true) {
+                for (Group group : groups.getGroups()) {
+                    state.getGroups().add(group);
+                    groupNames.add(group.getGroupName());
+                }
+                if (!groups.isTruncated()) break;
+                groups = client.listGroupsForUser(new ListGroupsForUserRequest(name).withMarker(groups.getMarker()));
+            }
+            state.getUsers().add(user);
+            state.setUserGroups(user.getUserName(), groupNames);
+            state.setAccessKey(user.getUserName(), getUserAccessKey(client, user));
+            return state;
+        } catch (NoSuchEntityException e) {
+            return null;
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * @return the group, or null if IAM does not know it
+     */
+    public Group fetchGroup(String name) {
+        AmazonIdentityManagementClient client = createClient();
+        try {
+            return client.getGroup(new GetGroupRequest(name)).getGroup();
+        } catch (NoSuchEntityException e) {
+            return null;
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private void fetchByListing(AmazonIdentityManagementClient client, IAMState state) {
+        ListGroupsResult groups = client.listGroups();
+        while (true) {
+            state.getGroups().addAll(groups.getGroups());
+            if (!groups.isTruncated()) break;
+            groups = client.listGroups(new ListGroupsRequest().withMarker(groups.getMarker()));
+        }
+
+        List<User> allUsers = new ArrayList<User>();
+        ListUsersResult users = client.listUsers();
+        while (true) {
+            allUsers.addAll(users.getUsers());
+            if (!users.isTruncated()) break;
+            users = client.listUsers(new ListUsersRequest().withMarker(users.getMarker()));
+        }
+        Map<User, List<String>> userGroups = forEachUser(client, allUsers, "groups", new UserCall<List<String>>() {
+            @Override
+            public List<String> call(AmazonIdentityManagementClient client, User user) {
+                List<String> groupNames = new ArrayList<String>();
+                for (Group group : client.listGroupsForUser(new ListGroupsForUserRequest(user.getUserName())).getGroups()) {
+                    groupNames.add(group.getGroupName());
+                }
+                return groupNames;
+            }
+        }, state);
+        for (User user : allUsers) {
+            if (userGroups.containsKey(user)) {
+                state.setUserGroups(user.getUserName(), userGroups.get(user));
+                state.getUsers().add(user);
+            }
+        }
+
+        if (fetchRoles) {
+            ListRolesResult roles = client.listRoles();
+            while (true) {
+                state.getRoles().addAll(roles.getRoles());
+                if (!roles.isTruncated()) break;
+                roles = client.listRoles(new ListRolesRequest().withMarker(roles.getMarker()));
+            }
+        }
+    }
+
+    private void fetchAuthorizationDetails(AmazonIdentityManagementClient client, IAMState state) {
+        List<String> filter = new ArrayList<String>(Arrays.asList("User", "Group"));
+        if (fetchRoles) {
+            filter.add("Role");
+        }
+        GetAccountAuthorizationDetailsRequest request = new GetAccountAuthorizationDetailsRequest().withFilter(filter);
+        int calls = 0;
+        while (true) {
+            GetAccountAuthorizationDetailsResult res = client.getAccountAuthorizationDetails(request);
+            calls++;
+            for (GroupDetail group : res.getGroupDetailList()) {
+                state.getGroups().add(new Group(group.getPath(), group.getGroupName(), group.getGroupId(), group.getArn(), group.getCreateDate()));
+            }
+            for (UserDetail user : res.getUserDetailList()) {
+                state.getUsers().add(new User(user.getPath(), user.getUserName(), user.getUserId(), user.getArn(), user.getCreateDate()));
+                state.setUserGroups(user.getUserName(), new ArrayList<String>(user.getGroupList()));
+            }
+            for (RoleDetail role : res.getRoleDetailList()) {
+                state.getRoles().add(new Role().withPath(role.getPath()).withRoleName(role.getRoleName())
+                        .withRoleId(role.getRoleId()).withArn(role.getArn()).withCreateDate(role.getCreateDate()));
+            }
+            if (res.isTruncated() == null || !res.isTruncated()) break;
+            request.setMarker(res.getMarker());
+        }
+        LOG.debug("Read {} users and {} groups with {} GetAccountAuthorizationDetails calls",
+                new Object[] {state.getUsers().size(), state.getGroups().size(), calls});
+    }
+
+    /**
+     * Reads the active access key of every user in a group. With the credential report, a user's keys are
+     * only carried over from the previous poll when a report generated after they were read shows the same
+     * key columns, i.e. it positively says nothing changed. Users the report does not vouch for, and users
+     * without an active key, are always read with ListAccessKeys, so the report never drops a user.
+     */
+    private void fetchAccessKeys(AmazonIdentityManagementClient client, IAMState state) {
+        CredentialReport report = useCredentialReport ? readCredentialReport(client) : null;
+        Map<String, KeyState> keys = new HashMap<String, KeyState>();
+        List<User> toRead = new ArrayList<User>();
+        for (User user : state.getUsers()) {
+            if (state.getUserGroups(user.getUserName()).isEmpty()) {
+                // Users without a group are not added to LDAP, their keys are not needed
+                continue;
+            }
+            String rotation = report != null ? report.rotations.get(user.getUserName()) : null;
+            KeyState known = knownKeys.get(user.getUserName());
+            if (rotation != null && known != null && report.generated > known.readAt && rotation.equals(known.rotation)) {
+                state.setAccessKey(user.getUserName(), known.accessKey);
+                keys.put(user.getUserName(), known);
+                continue;
+            }
+            toRead.add(user);
+        }
+
+        long readAt = System.currentTimeMillis();
+        Map<User, String> accessKeys = forEachUser(client, toRead, "access keys", new UserCall<String>() {
+            @Override
+            public String call(AmazonIdentityManagementClient client, User user) {
+                return getUserAccessKey(client, user);
+            }
+        }, state);
+        for (Map.Entry<User, String> entry : accessKeys.entrySet()) {
+            String userName = entry.getKey().getUserName();
+            state.setAccessKey(userName, entry.getValue());
+            String rotation = report != null ? report.rotations.get(userName) : null;
+            if (rotation != null && entry.getValue() != null) {
+                keys.put(userName, new KeyState(rotation, entry.getValue(), readAt));
+            }
+        }
+        knownKeys = keys;
+        LOG.debug("Read access keys with {} ListAccessKeys calls", toRead.size());
+    }
+
+    private interface UserCall<T> {
+        T call(AmazonIdentityManagementClient client, User user);
+    }
+
+    /**
+     * Makes a per-user IAM call for each of the users. A fixed number of workers take the users from a shared
+     * queue, so no more threads than calls allowed in flight ever wait on the rate limiter. Throttled calls are
+     * retried after the limiter has backed off; users whose call still fails are left out of the result and
+     * the state is marked incomplete.
+     */
+    private <T> Map<User, T> forEachUser(final AmazonIdentityManagementClient client, List<User> users, final String what,
+                                         final UserCall<T> call, IAMState state) {
+        final Map<User, T> results = Collections.synchronizedMap(new HashMap<User, T>());
+        if (users.isEmpty()) return results;
+        final Queue<User> pending = new ConcurrentLinkedQueue<User>(users);
+        final AtomicBoolean failed = new AtomicBoolean();
+        ExecutorService workers = createWorkers();
+        try {
+            List<Future<?>> running = new ArrayList<Future<?>>();
+            for (int i = 0; i < Math.min(concurrency, users.size()); i++) {
+                running.add(workers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        User user;
+                        while ((user = pending.poll()) != null) {
+                            try {
+                                results.put(user, callWithRetry(client, user, call));
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                failed.set(true);
+                                return;
+                            } catch (RuntimeException e) {
+                                LOG.error("Exception reading " + what + " of user " + user.getUserName(), e);
+                                failed.set(true);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> worker : running) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Exception reading " + what + " of users", e.getCause());
+                    failed.set(true);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.set(true);
+                    break;
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        if (failed.get() || !pending.isEmpty()) {
+            state.setIncomplete(true);
+        }
+        synchronized (results) {
+            return new HashMap<User, T>(results);
+        }
+    }
+
+    private <T> T callWithRetry(AmazonIdentityManagementClient client, User user, UserCall<T> call) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            rateLimiter.acquire();
+            boolean throttled = false;
+            try {
+                return call.call(client, user);
+            } catch (RuntimeException e) {
+                throttled = AdaptiveRateLimiter.isThrottling(e);
+                if (!throttled || attempt >= MAX_ATTEMPTS) throw e;
+            } finally {
+                rateLimiter.release(throttled);
+            }
+        }
+    }
+
+    /**
+     * @return a virtual thread per task executor when the JVM has one, a fixed pool otherwise. Either way
+     * forEachUser only submits as many workers as calls allowed in flight.
+     */
+    private ExecutorService createWorkers() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "iam-poll-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private String getUserAccessKey(AmazonIdentityManagementClient client, User user) {
+        ListAccessKeysResult res = client.listAccessKeys(new ListAccessKeysRequest().withUserName(user.getUserName()));
+        for (AccessKeyMetadata meta : res.getAccessKeyMetadata()) {
+            if ("Active".equals(meta.getStatus())) {
+                return meta.getAccessKeyId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the access key columns of the credential report. The report is regenerated by IAM at most every
+     * four hours, so it is only trusted to say whether a user's keys changed, never which key is active.
+     *
+     * @return the report, or null if it is not available
+     */
+    private CredentialReport readCredentialReport(AmazonIdentityManagementClient client) {
+        try {
+            String reportState = client.generateCredentialReport().getState();
+            for (int i = 0; i < 10 && !"COMPLETE".equals(reportState); i++) {
+                Thread.sleep(2000);
+                reportState = client.generateCredentialReport().getState();
+            }
+            if (!"COMPLETE".equals(reportState)) {
+                LOG.warn("Credential report is not ready, reading all access keys");
+                return null;
+            }
+            GetCredentialReportResult result = client.getCredentialReport();
+            ByteBuffer content = result.getContent();
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            return new CredentialReport(result.getGeneratedTime().getTime(), parseCredentialReport(new String(bytes, UTF8)));
+        } catch (Throwable e) {
+            LOG.warn("Unable to read the credential report, reading all access keys", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the access key columns of every user by user name
+     */
+    private Map<String, String> parseCredentialReport(String csv) throws IOException {
+        Map<String, String> rotations = new HashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new StringReader(csv));
+        List<String> header = parseCsvLine(reader.readLine());
+        int user = header.indexOf("user");
+        int active1 = header.indexOf("access_key_1_active");
+        int rotated1 = header.indexOf("access_key_1_last_rotated");
+        int active2 = header.indexOf("access_key_2_active");
+        int rotated2 = header.indexOf("access_key_2_last_rotated");
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            List<String> cols = parseCsvLine(line);
+            rotations.put(cols.get(user), cols.get(active1) + "/" + cols.get(rotated1) + "/" + cols.get(active2) + "/" + cols.get(rotated2));
+        }
+        return rotations;
+    }
+
+    /**
+     * Splits a line of the report into its fields. Fields may be quoted, as user names can contain commas,
+     * with quotes inside them doubled.
+     */
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static class CredentialReport {
+        final long generated;
+        final Map<String, String> rotations;
+
+        private CredentialReport(long generated, Map<String, String> rotations) {
+            this.generated = generated;
+            this.rotations = rotations;
+        }
+    }
+
+    private static class KeyState {
+        final String rotation;
+        final String accessKey;
+        // When ListAccessKeys returned the key, only a report generated later can vouch for it
+        final long readAt;
+
+        private KeyState(String rotation, String accessKey, long readAt) {
+            this.rotation = rotation;
+            this.accessKey = accessKey;
+            this.readAt = readAt;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter advanced every time the IAM entries change, so that anything derived from them can tell
+ * it is stale without being told about each change.
+ */
+public final class IAMGeneration {
+    private static final AtomicLong generation = new AtomicLong();
+
+    private IAMGeneration() {
+    }
+
+    public static long current() {
+        return generation.get();
+    }
+
+    public static long advance() {
+        return generation.incrementAndGet();
+    }
+}
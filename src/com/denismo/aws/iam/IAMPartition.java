@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.filter.*;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.LdapComparator;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.filtering.BaseEntryFilteringCursor;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.*;
+import org.apache.directory.server.core.api.partition.AbstractPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only in-memory partition holding the IAM entries under the rootDN. The poller builds every poll as
+ * a complete generation of entries off to the side and publishes it with a single reference swap, so
+ * readers never take a lock and never see half of a poll. Single-entry changes between polls go into the
+ * concurrent maps of the current generation in place, so they cost the same however many entries there
+ * are. Entries are not persisted, the warm start from the sync snapshot fills the partition on restart.
+ */
+public class IAMPartition extends AbstractPartition {
+    private static final Logger LOG = LoggerFactory.getLogger(IAMPartition.class);
+
+    private final AtomicReference<Generation> generation = new AtomicReference<Generation>();
+
+    public IAMPartition(SchemaManager schemaManager, Dn suffixDn) throws LdapException {
+        setId("iam");
+        setSchemaManager(schemaManager);
+        if (!suffixDn.isSchemaAware()) {
+            suffixDn.apply(schemaManager);
+        }
+        setSuffixDn(suffixDn);
+    }
+
+    @Override
+    protected void doInit() throws Exception {
+        generation.set(new Generation(0));
+    }
+
+    @Override
+    protected void doDestroy() throws Exception {
+    }
+
+    @Override
+    public void sync() throws Exception {
+    }
+
+    /**
+     * Replaces the content of the partition with the entries. The entries become owned by the partition
+     * and must not be modified afterwards. Either all of them are published or, if one of them does not
+     * fit under the suffix, none is.
+     */
+    public synchronized void publish(Collection<Entry> entries) throws LdapException {
+        Generation next = new Generation(generation.get().number + 1);
+        String suffix = getSuffixDn().getNormName();
+        for (Entry entry : entries) {
+            next.entries.put(entry.getDn().getNormName(), entry);
+        }
+        if (!next.entries.containsKey(suffix)) {
+            throw new LdapException("The IAM partition entries do not include the suffix " + getSuffixDn());
+        }
+        for (Map.Entry<String, Entry> entry : next.entries.entrySet()) {
+            Dn dn = entry.getValue().getDn();
+            if (entry.getKey().equals(suffix)) continue;
+            String parent = dn.getParent().getNormName();
+            if (!next.entries.containsKey(parent)) {
+                throw new LdapException("The parent of " + dn + " is missing from the IAM partition entries");
+            }
+            next.siblingsOf(parent).put(entry.getKey(), entry.getValue());
+        }
+        generation.set(next);
+        LOG.debug("Published generation " + next.number + " of the IAM partition with " + next.entries.size() + " entries");
+    }
+
+    /**
+     * Adds or replaces a single entry of the current generation.
+     *
+     * @param create whether the entry may be added if there is none with its DN
+     * @return false if the entry was neither replaced nor added
+     */
+    public synchronized boolean update(Entry entry, boolean create) {
+        String dn = entry.getDn().getNormName();
+        String parent = entry.getDn().getParent().getNormName();
+        Generation current = generation.get();
+        if (!current.entries.containsKey(dn) && (!create || !current.entries.containsKey(parent))) return false;
+        current.entries.put(dn, entry);
+        current.siblingsOf(parent).put(dn, entry);
+        return true;
+    }
+
+    /**
+     * Removes a single entry without children from the current generation.
+     *
+     * @return false if there is no such entry or it has children
+     */
+    public synchronized boolean remove(Dn dn) {
+        String norm = dn.getNormName();
+        String parent = dn.getParent().getNormName();
+        Generation current = generation.get();
+        Map<String, Entry> children = current.children.get(norm);
+        if (!current.entries.containsKey(norm) || (children != null && !children.isEmpty())) return false;
+        Map<String, Entry> siblings = current.children.get(parent);
+        if (siblings != null) {
+            siblings.remove(norm);
+            if (siblings.isEmpty()) {
+                current.children.remove(parent);
+            }
+        }
+        current.entries.remove(norm);
+        return true;
+    }
+
+    /**
+     * @return the entries of the current generation by normalized DN. They are shared and must not be
+     * modified, and the view follows the single-entry changes made to the generation.
+     */
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(generation.get().entries);
+    }
+
+    public long getGeneration() {
+        return generation.get().number;
+    }
+
+    @Override
+    public Entry lookup(LookupOperationContext lookupContext) throws LdapException {
+        Entry entry = generation.get().entries.get(lookupContext.getDn().getNormName());
+        return entry != null ? entry.clone() : null;
+    }
+
+    @Override
+    public boolean hasEntry(HasEntryOperationContext hasEntryContext) throws LdapException {
+        return generation.get().entries.containsKey(hasEntryContext.getDn().getNormName());
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        Generation current = generation.get();
+        Entry base = current.entries.get(searchContext.getDn().getNormName());
+        if (base == null) {
+            throw new LdapNoSuchObjectException(searchContext.getDn() + " does not exist");
+        }
+        List<Entry> results = new ArrayList<Entry>();
+        ExprNode filter = searchContext.getFilter();
+        SearchScope scope = searchContext.getScope();
+        if (scope == SearchScope.ONELEVEL) {
+            for (Entry child : current.childrenOf(base)) {
+                if (matches(filter, child)) {
+                    results.add(child.clone());
+                }
+            }
+        } else {
+            collect(current, base, filter, scope == SearchScope.SUBTREE, results);
+        }
+        return new BaseEntryFilteringCursor(new ListCursor<Entry>(results), searchContext);
+    }
+
+    private void collect(Generation current, Entry entry, ExprNode filter, boolean subtree, List<Entry> results) throws LdapException {
+        if (matches(filter, entry)) {
+            results.add(entry.clone());
+        }
+        if (subtree) {
+            for (Entry child : current.childrenOf(entry)) {
+                collect(current, child, filter, true, results);
+            }
+        }
+    }
+
+    /**
+     * Evaluates a normalized filter against a schema-aware entry.
+     */
+    static boolean matches(ExprNode node, Entry entry) throws LdapException {
+        if (node instanceof ObjectClassNode) {
+            return true;
+        }
+        if (node instanceof AndNode) {
+            for (ExprNode child : ((AndNode) node).getChildren()) {
+                if (!matches(child, entry)) return false;
+            }
+            return true;
+        }
+        if (node instanceof OrNode) {
+            for (ExprNode child : ((OrNode) node).getChildren()) {
+                if (matches(child, entry)) return true;
+            }
+            return false;
+        }
+        if (node instanceof NotNode) {
+            return !matches(((NotNode) node).getFirstChild(), entry);
+        }
+        if (node instanceof PresenceNode) {
+            return entry.get(((PresenceNode) node).getAttributeType()) != null;
+        }
+        if (node instanceof SubstringNode) {
+            SubstringNode substring = (SubstringNode) node;
+            Attribute attr = entry.get(substring.getAttributeType());
+            MatchingRule rule = substring.getAttributeType().getSubstring();
+            if (attr == null || rule == null) return false;
+            Pattern pattern = substring.getRegex(rule.getNormalizer());
+            for (Value<?> value : attr) {
+                if (pattern.matcher(String.valueOf(value.getNormValue())).matches()) return true;
+            }
+            return false;
+        }
+        if (node instanceof SimpleNode) {
+            SimpleNode<?> simple = (SimpleNode<?>) node;
+            Attribute attr = entry.get(simple.getAttributeType());
+            if (attr == null) return false;
+            for (Value<?> value : attr) {
+                if (compare(simple, value)) return true;
+            }
+            return false;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean compare(SimpleNode<?> node, Value<?> value) {
+        Object have = value.getNormValue();
+        Object want = node.getValue().getNormValue();
+        if (node instanceof EqualityNode || node instanceof ApproximateNode) {
+            return have instanceof byte[] && want instanceof byte[]
+                    ? Arrays.equals((byte[]) have, (byte[]) want) : have.equals(want);
+        }
+        AttributeType type = node.getAttributeType();
+        MatchingRule ordering = type.getOrdering();
+        if (ordering == null) return false;
+        int result = ((LdapComparator<Object>) ordering.getLdapComparator()).compare(have, want);
+        return node instanceof GreaterEqNode ? result >= 0 : result <= 0;
+    }
+
+    @Override
+    public void add(AddOperationContext addContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void delete(DeleteOperationContext deleteContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void modify(ModifyOperationContext modifyContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rename(RenameOperationContext renameContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void move(MoveOperationContext moveContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void moveAndRename(MoveAndRenameOperationContext moveAndRenameContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void unbind(UnbindOperationContext unbindContext) throws LdapException {
+    }
+
+    private LdapUnwillingToPerformException readOnly() {
+        return new LdapUnwillingToPerformException("The IAM partition is maintained by the IAM poller and is read-only");
+    }
+
+    private static final class Generation {
+        final long number;
+        final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        // Children of each entry by normalized DN
+        final ConcurrentMap<String, ConcurrentMap<String, Entry>> children = new ConcurrentHashMap<String, ConcurrentMap<String, Entry>>();
+
+        Generation(long number) {
+            this.number = number;
+        }
+
+        Collection<Entry> childrenOf(Entry entry) {
+            Map<String, Entry> map = children.get(entry.getDn().getNormName());
+            return map != null ? map.values() : Collections.<Entry>emptyList();
+        }
+
+        ConcurrentMap<String, Entry> siblingsOf(String parent) {
+            ConcurrentMap<String, Entry> siblings = children.get(parent);
+            if (siblings == null) {
+                siblings = new ConcurrentHashMap<String, Entry>();
+                children.put(parent, siblings);
+            }
+            return siblings;
+        }
+    }
+}
@@ -18,17 +18,31 @@
 
 package com.denismo.aws.iam;
 
-import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.BasicSessionCredentials;
-import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
-import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.DirectoryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * User: Denis Mikhalkin
  * Date: 30/03/13
@@ -36,32 +50,265 @@ import org.slf4j.LoggerFactory;
  */
 public class IAMPasswordValidator {
     private static final Logger LOG = LoggerFactory.getLogger(IAMPasswordValidator.class);
-    public boolean verifyIAMPassword(Entry user, String pw) throws LdapInvalidAttributeValueException, LdapAuthenticationException {
-        boolean role = false;
+
+    private static final String DEFAULT_STS_ENDPOINT = "https://sts.amazonaws.com";
+
+    public enum FallbackPolicy { FAIL_FAST, LAST_KNOWN_GOOD }
+
+    private static final AtomicLong cacheHits = BridgeMetrics.counter("verify.cache.hits");
+    private static final AtomicLong cacheMisses = BridgeMetrics.counter("verify.cache.misses");
+    private static final AtomicLong verifierHits = BridgeMetrics.counter("verify.storedVerifier.hits");
+    private static final AtomicLong lastKnownGoodHits = BridgeMetrics.counter("verify.lastKnownGood.hits");
+    private static final BridgeMetrics.Histogram remoteLatency = BridgeMetrics.histogram("verify.remote.latency");
+
+    private final CredentialCache cache = new CredentialCache();
+    private final ConcurrentMap<String, FutureTask<Boolean>> inFlight = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+    private final CircuitBreaker breaker = new CircuitBreaker("IAM verification");
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private volatile CredentialVerifier verifier;
+    private volatile ThreadPoolExecutor executor = createExecutor(8, 100);
+    private long verifyTimeout = 3000;
+    private FallbackPolicy fallbackPolicy = FallbackPolicy.FAIL_FAST;
+    private long lastKnownGoodTTL = 86400000;
+    private boolean persistVerifier;
+    private long verifierMaxAge = 86400000;
+    private int verifierIterations = 10000;
+
+    public void readConfig(DirectoryService directory) {
+        try {
+            Entry config = BridgeConfig.read(directory);
+            cache.setPositiveTTL(BridgeConfig.getLong(config, "credentialCacheTTL", 300) * 1000);
+            cache.setNegativeTTL(BridgeConfig.getLong(config, "credentialCacheNegativeTTL", 30) * 1000);
+            cache.setMaxSize(BridgeConfig.getInt(config, "credentialCacheSize", 10000));
+
+            ClientConfiguration clientConfig = new ClientConfiguration();
+            clientConfig.setMaxConnections(BridgeConfig.getInt(config, "awsMaxConnections", 50));
+            clientConfig.setConnectionTimeout(BridgeConfig.getInt(config, "awsConnectionTimeout", 2000));
+            clientConfig.setSocketTimeout(BridgeConfig.getInt(config, "awsSocketTimeout", 5000));
+            clientConfig.setUseTcpKeepAlive(true);
+            String region = BridgeConfig.getString(config, "awsRegion", null);
+            String endpoint = BridgeConfig.getString(config, "stsEndpoint",
+                    region != null ? "https://sts." + region + ".amazonaws.com" : DEFAULT_STS_ENDPOINT);
+            setVerifier(new STSCredentialVerifier(clientConfig, endpoint));
+
+            verifyTimeout = BridgeConfig.getLong(config, "verifyTimeout", 3000);
+            ThreadPoolExecutor old = executor;
+            executor = createExecutor(BridgeConfig.getInt(config, "verifyThreads", 8), BridgeConfig.getInt(config, "verifyQueueSize", 100));
+            old.shutdown();
+            breaker.setFailureThreshold(BridgeConfig.getInt(config, "breakerFailureThreshold", 5));
+            breaker.setOpenPeriod(BridgeConfig.getLong(config, "breakerOpenPeriod", 30) * 1000);
+            breaker.setTrialTimeout(verifyTimeout);
+            if ("lastKnownGood".equalsIgnoreCase(BridgeConfig.getString(config, "breakerPolicy", "failFast"))) {
+                fallbackPolicy = FallbackPolicy.LAST_KNOWN_GOOD;
+            }
+            lastKnownGoodTTL = BridgeConfig.getLong(config, "lastKnownGoodTTL", 86400) * 1000;
+            persistVerifier = BridgeConfig.getBoolean(config, "persistVerifier", false);
+            verifierMaxAge = BridgeConfig.getLong(config, "verifierMaxAge", 86400) * 1000;
+            verifierIterations = BridgeConfig.getInt(config, "verifierIterations", 10000);
+        } catch (Throwable e) {
+            LOG.error("Exception reading config for IAMPasswordValidator", e);
+        }
+    }
+
+    public CredentialCache getCredentialCache() {
+        return cache;
+    }
+
+    public boolean verifyIAMPassword(Entry user, String pw) throws LdapException {
+        IAMAccountIndex.Account account = IAMAccountIndex.Account.fromEntry(user);
+        return account != null && verifyIAMPassword(account, pw);
+    }
+
+    public boolean verifyIAMPassword(IAMAccountIndex.Account account, String pw) throws LdapAuthenticationException {
         AWSCredentials creds;
-        if (isRole(user)) {
-            role = true;
+        if (account.isRole()) {
             String[] parts = pw.split("\\|");
             if (parts == null || parts.length < 3) throw new LdapAuthenticationException();
             creds = new BasicSessionCredentials(parts[0], parts[1], parts[2]);
         } else {
-            creds = new BasicAWSCredentials(user.get("accessKey").getString(), pw);
+            creds = new BasicAWSCredentials(account.getAccessKey(), pw);
         }
-        LOG.debug("Verifying {} {} with accessKey <hidden> and secretKey <hidden>",
-                role ? "role":"user", user.get("uid").getString());
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(creds);
-        try {
-            client.getAccountSummary();
-        } catch (AmazonClientException e) {
-            System.err.println(e.getMessage());
+        final String key = cache.key(creds.getAWSAccessKeyId(), pw);
+        Boolean cached = cache.get(key);
+        if (cached != null) {
+            LOG.debug("Using cached verification result for {}", account.getUid());
+            cacheHits.incrementAndGet();
+            return cached;
+        }
+        cacheMisses.incrementAndGet();
+        if (persistVerifier && !account.isRole()) {
+            Boolean local = PasswordVerifier.check(account.getVerifier(), account.getAccessKey(), pw, verifierMaxAge);
+            if (local != null) {
+                LOG.debug("Using stored credential verifier for {}", account.getUid());
+                cache.put(key, local);
+                verifierHits.incrementAndGet();
+                return local;
+            }
+        }
+        long start = System.nanoTime();
+        Boolean valid = verifyOnce(key, creds, account);
+        remoteLatency.recordSince(start);
+        if (valid == null) {
+            if (fallbackPolicy == FallbackPolicy.LAST_KNOWN_GOOD && cache.isLastKnownGood(key, lastKnownGoodTTL)) {
+                LOG.warn("IAM is unavailable, accepting last known good credentials of " + account.getUid());
+                lastKnownGoodHits.incrementAndGet();
+                return true;
+            }
             return false;
-        } finally {
-            client.shutdown();
         }
-        return true;
+        return valid;
+    }
+
+    /**
+     * @return a new verifier to store on the entry of an account whose password has just been verified, or
+     * null if verifiers are not persisted or the account already has a current one
+     */
+    public String createVerifier(IAMAccountIndex.Account account, String pw) {
+        if (!persistVerifier || account.isRole()
+                || PasswordVerifier.isCurrent(account.getVerifier(), account.getAccessKey(), verifierMaxAge)) {
+            return null;
+        }
+        return PasswordVerifier.create(account.getAccessKey(), pw, verifierIterations);
+    }
+
+    /**
+     * Concurrent binds with the same credentials share a single in-flight verification, which runs on the
+     * bounded verification executor rather than on the LDAP worker thread. The caller waits no longer than
+     * the configured deadline; a verification that completes after that is still cached.
+     *
+     * @return the verification result, or null if it could not be obtained in time
+     */
+    private Boolean verifyOnce(final String key, final AWSCredentials creds, final IAMAccountIndex.Account account)
+            throws LdapAuthenticationException {
+        FutureTask<Boolean> inFlightTask = inFlight.get(key);
+        if (inFlightTask == null) {
+            if (!breaker.allowRequest()) {
+                LOG.debug("Circuit breaker is open, not verifying {}", account.getUid());
+                return null;
+            }
+            FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        long start = System.currentTimeMillis();
+                        Boolean valid;
+                        try {
+                            valid = verify(creds, account.isRole(), account.getUid());
+                        } catch (RuntimeException e) {
+                            breaker.recordFailure();
+                            throw e;
+                        }
+                        if (valid == null || System.currentTimeMillis() - start > verifyTimeout) {
+                            breaker.recordFailure();
+                        } else {
+                            breaker.recordSuccess();
+                        }
+                        if (valid != null) {
+                            // Only remember definitive answers, not failures to reach AWS
+                            cache.put(key, valid);
+                        }
+                        return valid;
+                    } finally {
+                        inFlight.remove(key);
+                    }
+                }
+            });
+            inFlightTask = inFlight.putIfAbsent(key, task);
+            if (inFlightTask == null) {
+                inFlightTask = task;
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    inFlight.remove(key, task);
+                    rejected.incrementAndGet();
+                    breaker.recordFailure();
+                    LOG.warn("IAM verification queue is full, rejecting bind of " + account.getUid());
+                    return null;
+                }
+            }
+        } else {
+            LOG.debug("Joining in-flight verification for {}", account.getUid());
+        }
+        try {
+            return inFlightTask.get(verifyTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timedOut.incrementAndGet();
+            LOG.warn("Timed out verifying " + account.getUid());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LdapAuthenticationException("Interrupted while verifying " + account.getUid());
+        } catch (ExecutionException e) {
+            LOG.error("Exception verifying " + account.getUid(), e.getCause());
+            return null;
+        }
+    }
+
+    private Boolean verify(AWSCredentials creds, boolean role, String uid) {
+        LOG.debug("Verifying {} {} with accessKey <hidden> and secretKey <hidden>",
+                role ? "role":"user", uid);
+        return getVerifier().verify(creds);
+    }
+
+    private CredentialVerifier getVerifier() {
+        CredentialVerifier current = verifier;
+        if (current == null) {
+            synchronized (this) {
+                if (verifier == null) {
+                    verifier = new STSCredentialVerifier(new ClientConfiguration(), DEFAULT_STS_ENDPOINT);
+                }
+                current = verifier;
+            }
+        }
+        return current;
+    }
+
+    public synchronized void setVerifier(CredentialVerifier verifier) {
+        if (this.verifier != null) {
+            this.verifier.shutdown();
+        }
+        this.verifier = verifier;
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "iam-verify-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveVerifications() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public CircuitBreaker.State getBreakerState() {
+        return breaker.getState();
     }
 
-    private boolean isRole(Entry user) {
-        return user.hasObjectClass("iamrole");
+    public void shutdown() {
+        executor.shutdownNow();
+        setVerifier(null);
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pollers that provision single principals just in time, reachable from the authenticator and the
+ * interceptors which are created separately by the directory service.
+ */
+public final class IAMProvisioning {
+    private static final List<LDAPIAMPoller> pollers = new CopyOnWriteArrayList<LDAPIAMPoller>();
+
+    private IAMProvisioning() {
+    }
+
+    public static void register(LDAPIAMPoller poller) {
+        pollers.add(poller);
+    }
+
+    public static void unregister(LDAPIAMPoller poller) {
+        pollers.remove(poller);
+    }
+
+    public static boolean isEnabled() {
+        return !pollers.isEmpty();
+    }
+
+    /**
+     * @return true if the account with the DN was found in IAM and added
+     */
+    public static boolean provision(Dn dn) {
+        for (LDAPIAMPoller poller : pollers) {
+            if (poller.provision(dn)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Asks only the poller of the account whose rootDN holds the search base, so a miss costs one account's
+     * IAM calls and the principal is added where the search looks for it.
+     *
+     * @return true if a user or role with the uid was found in IAM and added under the base
+     */
+    public static boolean provisionUid(Dn base, String uid) {
+        for (LDAPIAMPoller poller : pollers) {
+            if (poller.isUnderRoot(base)) {
+                return poller.provisionUid(uid);
+            }
+        }
+        return false;
+    }
+}
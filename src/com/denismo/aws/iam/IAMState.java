@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.Role;
+import com.amazonaws.services.identitymanagement.model.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The users, groups, memberships, active access keys and roles read from IAM in one poll.
+ */
+public class IAMState {
+    private final List<Group> groups = new ArrayList<Group>();
+    private final List<User> users = new ArrayList<User>();
+    private final List<Role> roles = new ArrayList<Role>();
+    private final Map<String, List<String>> userGroups = new HashMap<String, List<String>>();
+    private final Map<String, String> accessKeys = new HashMap<String, String>();
+    private boolean incomplete;
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public List<Role> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return names of the groups the user belongs to, the first one being the primary group
+     */
+    public List<String> getUserGroups(String userName) {
+        List<String> groupNames = userGroups.get(userName);
+        return groupNames != null ? groupNames : Collections.<String>emptyList();
+    }
+
+    public void setUserGroups(String userName, List<String> groupNames) {
+        userGroups.put(userName, groupNames);
+    }
+
+    /**
+     * @return the first active access key of the user, or null if it has none
+     */
+    public String getAccessKey(String userName) {
+        return accessKeys.get(userName);
+    }
+
+    public void setAccessKey(String userName, String accessKey) {
+        if (accessKey != null) {
+            accessKeys.put(userName, accessKey);
+        } else {
+            accessKeys.remove(userName);
+        }
+    }
+
+    /**
+     * @return true if some accounts could not be read, in which case missing entries must not be treated as deleted
+     */
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    public void setIncomplete(boolean incomplete) {
+        this.incomplete = incomplete;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Assigns stable numeric IDs (uidNumber, gidNumber) to IAM ARNs. Once a name has an ID it never changes.
+ */
+public interface IDAllocator {
+    /**
+     * Prepares the backend, waiting at most timeout milliseconds. Called off the server startup path.
+     */
+    void init(long timeout) throws LdapException;
+
+    String allocateUID(String name);
+
+    /**
+     * @return the ID of every name
+     */
+    Map<String, String> allocateUIDs(Collection<String> names);
+
+    void close();
+}
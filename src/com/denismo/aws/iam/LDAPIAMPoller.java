@@ -21,36 +21,67 @@ package com.denismo.aws.iam;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
 import com.amazonaws.services.identitymanagement.model.*;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.entry.*;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
-import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.FilterParser;
-import org.apache.directory.api.ldap.model.message.DeleteRequestImpl;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
 import org.apache.directory.api.ldap.model.schema.normalizers.NameComponentNormalizer;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.*;
 import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.api.partition.Partition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: Denis Mikhalkin
@@ -59,49 +90,215 @@ import java.util.concurrent.TimeUnit;
  */
 public class LDAPIAMPoller {
     private static final Logger LOG = LoggerFactory.getLogger(LDAPIAMPoller.class);
+    private static final BridgeMetrics.Histogram pollDuration = BridgeMetrics.histogram("poll.duration");
+    private static final BridgeMetrics.Histogram fetchDuration = BridgeMetrics.histogram("poll.fetch.duration");
+    private static final BridgeMetrics.Histogram resolveDuration = BridgeMetrics.histogram("poll.resolveIDs.duration");
+    private static final BridgeMetrics.Histogram buildDuration = BridgeMetrics.histogram("poll.build.duration");
+    private static final BridgeMetrics.Histogram applyDuration = BridgeMetrics.histogram("poll.apply.duration");
+    private static final AtomicLong entriesAdded = BridgeMetrics.counter("poll.entries.added");
+    private static final AtomicLong entriesModified = BridgeMetrics.counter("poll.entries.modified");
+    private static final AtomicLong entriesDeleted = BridgeMetrics.counter("poll.entries.deleted");
+    private static final AtomicLong lastAdded = BridgeMetrics.counter("poll.last.added");
+    private static final AtomicLong lastModified = BridgeMetrics.counter("poll.last.modified");
+    private static final AtomicLong lastDeleted = BridgeMetrics.counter("poll.last.deleted");
+    private static final int JIT_QUEUE_LIMIT = 8;
+    private static final String[] MANAGED_ATTRIBUTES = {
+            SchemaConstants.OBJECT_CLASS_AT, "cn", "uid", "accessKey", "uidNumber", "gidNumber", "memberUid",
+            "shadowLastChange", "shadowExpire", "shadowInactive", "shadowFlag", "shadowWarning", "shadowMin", "shadowMax",
+            "loginShell", "homeDirectory"
+    };
 
+    private final LDAPIAMPoller main;
+    private final String account;
+    private final List<LDAPIAMPoller> accounts = new CopyOnWriteArrayList<LDAPIAMPoller>();
+    private final Object bootstrapLock = new Object();
+    private final AtomicLong intervalSeconds;
+    private final AtomicLong iamThrottled;
     private AWSCredentialsProvider credentials;
-    private UIDAllocator userIDAllocator;
-    private UIDAllocator groupIDAllocator;
+    private IDAllocator userIDAllocator;
+    private IDAllocator groupIDAllocator;
     private DirectoryService directory;
     private int pollPeriod = 600;
+    private int minPollPeriod = 150;
+    private int maxPollPeriod = 2400;
+    private double pollJitter = 0.1;
+    private long pollInterval = 600;
+    private int lastChanges;
     private String groupsDN;
     private String usersDN;
     private String rootDN;
+    private Dn rootDn;
+    private Dn configDn;
     private String GROUP_FMT;
     private String USER_FMT;
     private String accessKey;
     private String secretKey;
+    private String roleArn;
+    private String stsEndpoint;
     private String ROLE_FMT;
     private String rolesDN;
-    private boolean firstRun = true;
+    private CredentialCache credentialCache;
+    private IAMAccountIndex accountIndex;
+    private IAMFetcher fetcher;
+    private boolean syncRoles;
+    private IAMFetcher.Mode fetchMode = IAMFetcher.Mode.BULK;
+    private boolean useCredentialReport;
+    private int pollConcurrency = 8;
+    private int iamRateLimit = 10;
+    private File idCacheDir;
+    private int idBlockSize = 20;
+    private String idAllocator = "dynamodb";
+    private String dynamoDBEndpoint = "dynamodb.ap-southeast-2.amazonaws.com";
+    private long bootstrapTimeout = 120;
+    private File snapshotFile;
+    private SyncSnapshot lastSnapshot;
+    private boolean iamPartition;
+    private IAMPartition partition;
+    private List<Entry> baseEntries;
+    private boolean jitProvisioning;
+    private long jitNegativeTTL = 300000;
+    private int jitRateLimit = 30;
+    private final ConcurrentMap<String, Long> jitMisses = new ConcurrentHashMap<String, Long>();
+    private long jitTimeout = 3000;
+    // Provisioning tasks allowed to wait on the poller thread at once; further requests fail fast
+    private final Semaphore jitSlots = new Semaphore(JIT_QUEUE_LIMIT);
+    private long jitWindowStart;
+    private String eventQueueUrl;
+    private String eventQueueEndpoint;
+    private String iamEndpoint;
+    private IAMEventConsumer eventConsumer;
+    private ScheduledExecutorService executor;
+    private final AtomicBoolean pollRequested = new AtomicBoolean();
+    private final Random random = new Random();
+    private ScheduledFuture<?> nextPoll;
+    private DirectoryListener configListener;
+    private int jitWindowCount;
+    private volatile boolean bootstrapped;
+    private volatile State readiness = State.STARTING;
+    private Map<String, String> userIDs = new HashMap<String, String>();
+    private Map<String, String> groupIDs = new HashMap<String, String>();
 
     public LDAPIAMPoller(DirectoryService directoryService) throws LdapException {
+        this(directoryService, null, null);
+    }
+
+    /**
+     * Creates the poller of an additional account configured by an iamaccountconfig entry below the config
+     * entry. It syncs the account into its own rootDN and shares the ID allocators of the main poller, so
+     * that IDs stay unique across all accounts.
+     */
+    LDAPIAMPoller(DirectoryService directoryService, Entry accountConfig, LDAPIAMPoller main) throws LdapException {
         this.directory = directoryService;
+        this.main = main;
+        this.account = accountConfig != null ? accountName(accountConfig) : null;
+        String iamMetrics = account != null ? "aws.iam." + account : "aws.iam";
+        intervalSeconds = BridgeMetrics.counter(account != null ? "poll." + account + ".intervalSeconds" : "poll.intervalSeconds");
+        iamThrottled = BridgeMetrics.counter(iamMetrics + ".throttled");
 
-        readConfig();
-        credentials = new AWSCredentialsProvider() {
-            @Override
-            public void refresh() {
+        readConfig(accountConfig);
+        configDn = accountConfig != null ? accountConfig.getDn() : directory.getDnFactory().create(BridgeConfig.CONFIG_DN);
+        if (rootDN != null) {
+            rootDn = directory.getDnFactory().create(rootDN);
+        }
+        if (iamPartition) {
+            installPartition();
+        }
+        if (accessKey != null) {
+            credentials = new AWSCredentialsProvider() {
+                @Override
+                public void refresh() {
 
-            }
+                }
 
-            @Override
-            public AWSCredentials getCredentials() {
-                return new BasicAWSCredentials(accessKey, secretKey);
+                @Override
+                public AWSCredentials getCredentials() {
+                    return new BasicAWSCredentials(accessKey, secretKey);
+                }
+            };
+        } else {
+            credentials = new DefaultAWSCredentialsProviderChain();
+        }
+        if (main != null) {
+            userIDAllocator = main.userIDAllocator;
+            groupIDAllocator = main.groupIDAllocator;
+        } else {
+            userIDAllocator = createIDAllocator("Users");
+            groupIDAllocator = createIDAllocator("Groups");
+        }
+        fetcher = new IAMFetcher(roleArn != null ? assumeRole(credentials) : credentials);
+        fetcher.setMetricsPrefix(iamMetrics);
+        fetcher.setMode(fetchMode);
+        fetcher.setFetchRoles(syncRoles);
+        fetcher.setUseCredentialReport(useCredentialReport);
+        fetcher.setEndpoint(iamEndpoint);
+        fetcher.setLimits(pollConcurrency, iamRateLimit);
+        LOG.info(account != null ? "IAMPoller created for account " + account : "IAMPoller created");
+    }
+
+    /**
+     * @return the cn of the account config entry, reduced to characters safe in file names and partition IDs
+     */
+    private static String accountName(Entry accountConfig) throws LdapException {
+        String cn = BridgeConfig.getString(accountConfig, "cn", null);
+        if (cn == null) {
+            throw new LdapException("The account config " + accountConfig.getDn() + " has no cn");
+        }
+        return cn.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    /**
+     * Reads IAM with temporary credentials of the role, obtained with the configured credentials and
+     * renewed by the provider before they expire. The ID allocators and the event queue keep using the
+     * configured credentials.
+     */
+    private AWSCredentialsProvider assumeRole(AWSCredentialsProvider base) {
+        STSAssumeRoleSessionCredentialsProvider provider = new STSAssumeRoleSessionCredentialsProvider(base, roleArn,
+                "iam-ldap-bridge");
+        if (stsEndpoint != null) {
+            provider.setSTSClientEndpoint(stsEndpoint);
+        }
+        return provider;
+    }
+
+    private IDAllocator createIDAllocator(String space) throws LdapException {
+        if ("hash".equalsIgnoreCase(idAllocator)) {
+            return new HashIDAllocator(10000, 2000000000L);
+        }
+        if ("local".equalsIgnoreCase(idAllocator)) {
+            LocalIDStore store = openLocalIDs(space);
+            if (store == null) {
+                throw new LdapException("Unable to open the local " + space + " ID store");
             }
-        };
-        userIDAllocator = new UIDAllocator(credentials, "Users");
-        groupIDAllocator = new UIDAllocator(credentials, "Groups");
-        LOG.info("IAMPoller created");
+            return new LocalIDAllocator(store);
+        }
+        UIDAllocator allocator = new UIDAllocator(credentials, space, openLocalIDs(space), dynamoDBEndpoint);
+        allocator.setBlockSize(idBlockSize);
+        return allocator;
+    }
+
+    private LocalIDStore openLocalIDs(String space) {
+        try {
+            return new LocalIDStore(new File(idCacheDir, "IAM" + space + ".ids"));
+        } catch (IOException e) {
+            LOG.error("Unable to open the local " + space + " ID cache, IDs will be read from DynamoDB", e);
+            return null;
+        }
+    }
+
+    public void setCredentialCache(CredentialCache credentialCache) {
+        this.credentialCache = credentialCache;
+    }
+
+    public void setAccountIndex(IAMAccountIndex accountIndex) {
+        this.accountIndex = accountIndex;
     }
 
-    private void readConfig() {
+    private void readConfig(Entry accountConfig) {
         try {
-            LookupOperationContext lookupContext = new LookupOperationContext( directory.getAdminSession(),
-                    directory.getDnFactory().create("cn=config,ads-authenticatorid=awsiamauthenticator,ou=authenticators,ads-interceptorId=authenticationInterceptor,ou=interceptors,ads-directoryServiceId=default,ou=config"),
-                    SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
-            Entry config = directory.getPartitionNexus().lookup(lookupContext);
+            Entry config = BridgeConfig.read(directory);
+            if (accountConfig != null) {
+                config = BridgeConfig.forAccount(config, accountConfig);
+            }
             if (config.get("accessKey") != null) {
                 accessKey = config.get("accessKey").getString();
             }
@@ -111,17 +308,48 @@ public class LDAPIAMPoller {
             if (config.get("rootDN") != null) {
                 rootDN = config.get("rootDN").getString();
             }
+            roleArn = BridgeConfig.getString(config, "roleArn", null);
+            stsEndpoint = BridgeConfig.getString(config, "stsEndpoint", null);
             groupsDN = "ou=groups," + rootDN;
             usersDN = "ou=users," + rootDN;
             rolesDN = "ou=roles," + rootDN;
             GROUP_FMT = "cn=%s," + groupsDN;
             USER_FMT = "uid=%s," + usersDN;
             ROLE_FMT = "uid=%s,ou=roles," + rootDN;
-            ensureDNs();
+            iamPartition = BridgeConfig.getBoolean(config, "iamPartition", false);
+            if (!iamPartition) {
+                ensureDNs();
+            }
 
             if (config.get("pollPeriod") != null) {
                 pollPeriod = Integer.parseInt(config.get("pollPeriod").getString());
             }
+            minPollPeriod = Math.min(pollPeriod, BridgeConfig.getInt(config, "minPollPeriod", Math.max(60, pollPeriod / 4)));
+            maxPollPeriod = Math.max(pollPeriod, BridgeConfig.getInt(config, "maxPollPeriod", pollPeriod * 4));
+            pollJitter = Math.min(100, Math.max(0, BridgeConfig.getInt(config, "pollJitter", 10))) / 100.0;
+            if ("list".equalsIgnoreCase(BridgeConfig.getString(config, "fetchMode", "bulk"))) {
+                fetchMode = IAMFetcher.Mode.LIST;
+            }
+            syncRoles = BridgeConfig.getBoolean(config, "syncRoles", false);
+            useCredentialReport = BridgeConfig.getBoolean(config, "useCredentialReport", false);
+            idCacheDir = new File(BridgeConfig.getString(config, "idCacheDir",
+                    new File(directory.getInstanceLayout().getPartitionsDirectory(), "iam").getPath()));
+            idBlockSize = BridgeConfig.getInt(config, "idBlockSize", 20);
+            bootstrapTimeout = BridgeConfig.getLong(config, "bootstrapTimeout", 120);
+            snapshotFile = new File(idCacheDir, account != null ? "iam-snapshot-" + account + ".txt" : "iam-snapshot.txt");
+            idAllocator = BridgeConfig.getString(config, "idAllocator", "dynamodb");
+            String region = BridgeConfig.getString(config, "awsRegion", null);
+            dynamoDBEndpoint = BridgeConfig.getString(config, "dynamoDBEndpoint",
+                    region != null ? "dynamodb." + region + ".amazonaws.com" : dynamoDBEndpoint);
+            pollConcurrency = BridgeConfig.getInt(config, "pollConcurrency", 8);
+            iamRateLimit = BridgeConfig.getInt(config, "iamRateLimit", 10);
+            jitProvisioning = BridgeConfig.getBoolean(config, "jitProvisioning", false);
+            jitNegativeTTL = BridgeConfig.getLong(config, "jitNegativeTTL", 300) * 1000;
+            jitRateLimit = BridgeConfig.getInt(config, "jitRateLimit", 30);
+            jitTimeout = BridgeConfig.getLong(config, "verifyTimeout", 3000);
+            eventQueueUrl = BridgeConfig.getString(config, "eventQueueUrl", null);
+            eventQueueEndpoint = BridgeConfig.getString(config, "eventQueueEndpoint", null);
+            iamEndpoint = BridgeConfig.getString(config, "iamEndpoint", null);
         } catch (Throwable e) {
             LOG.error("Exception reading config for LDAPIAMPoller", e);
         }
@@ -144,10 +372,10 @@ public class LDAPIAMPoller {
         }
     }
 
-    private void clearDN(String dnStr) throws LdapException, ParseException, IOException, CursorException {
+    private Collection<Entry> search(String dnStr, String filterStr) throws LdapException, ParseException, IOException, CursorException {
         Dn dn = directory.getDnFactory().create(dnStr);
         dn.apply(directory.getSchemaManager());
-        ExprNode filter = FilterParser.parse(directory.getSchemaManager(), "(ObjectClass=*)");
+        ExprNode filter = FilterParser.parse(directory.getSchemaManager(), filterStr);
         NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( directory.getSchemaManager() );
         FilterNormalizingVisitor visitor = new FilterNormalizingVisitor( ncn, directory.getSchemaManager() );
         filter.accept(visitor);
@@ -155,194 +383,1038 @@ public class LDAPIAMPoller {
                 dn, SearchScope.SUBTREE, filter, SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
         EntryFilteringCursor cursor = directory.getPartitionNexus().search(context);
         cursor.beforeFirst();
-        Collection<Dn> dns = new ArrayList<Dn>();
+        Collection<Entry> entries = new ArrayList<Entry>();
         while (cursor.next()) {
             Entry ent = cursor.get();
             if (ent.getDn().equals(dn)) continue;
-            dns.add(ent.getDn());
+            entries.add(ent);
         }
         cursor.close();
+        return entries;
+    }
 
-        LOG.info("Deleting " + dns.size() + " items from under " + dnStr);
-        for (Dn deleteDn: dns) {
-            directory.getAdminSession().delete(deleteDn);
+    private void loadAccountIndex() {
+        if (accountIndex == null) return;
+        try {
+            for (Entry entry : search(usersDN, "(objectClass=iamaccount)")) {
+                accountIndex.put(entry);
+            }
+            for (Entry entry : search(rolesDN, "(objectClass=iamaccount)")) {
+                accountIndex.put(entry);
+            }
+            LOG.info("Loaded " + accountIndex.size() + " IAM accounts into the bind index");
+        } catch (Throwable e) {
+            LOG.error("Exception loading the IAM account index", e);
+        }
+    }
+
+    /**
+     * Adds the user or role with the DN from IAM if it is not in the directory yet, so that it does not have
+     * to wait for the next poll.
+     *
+     * @return true if the account was found in IAM and added
+     */
+    public boolean provision(Dn dn) {
+        if (!jitProvisioning || dn.size() < 2) return false;
+        try {
+            String parent = dn.getParent().getNormName();
+            String name = dn.getRdn().getValue().getString();
+            if (parent.equals(directory.getDnFactory().create(usersDN).getNormName())) {
+                return provisionOnPoller(name, true, false);
+            }
+            if (syncRoles && parent.equals(directory.getDnFactory().create(rolesDN).getNormName())) {
+                return provisionOnPoller(name, false, true);
+            }
+        } catch (LdapException e) {
+            LOG.error("Exception provisioning " + dn, e);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the DN is the rootDN of this account or below it
+     */
+    public boolean isUnderRoot(Dn dn) {
+        return rootDn != null && (dn.equals(rootDn) || dn.isDescendantOf(rootDn));
+    }
+
+    /**
+     * @return true if a user, or a role when roles are synced, with the uid was found in IAM and added
+     */
+    public boolean provisionUid(String uid) {
+        if (!jitProvisioning) return false;
+        return provisionOnPoller(uid, true, syncRoles);
+    }
+
+    /**
+     * Provisions on the poller thread, so that it never overlaps a poll or an event refresh writing the same
+     * entries, and waits for it at most verifyTimeout. The bind or search thread is never held by IAM for
+     * longer than that; provisioning that takes longer still completes in the background. Names known not to
+     * be in IAM, requests over the rate limit and requests beyond the few already queued are refused on the
+     * calling thread without queueing anything.
+     */
+    private boolean provisionOnPoller(final String name, boolean user, boolean role) {
+        if (!bootstrapped) return false;
+        final boolean tryUser = user && !isKnownMiss(name, false);
+        final boolean tryRole = role && !isKnownMiss(name, true);
+        if (!tryUser && !tryRole) return false;
+        if (!allowProvisioning()) {
+            LOG.debug("Not provisioning {}, the provisioning rate limit is reached", name);
+            return false;
+        }
+        if (!jitSlots.tryAcquire()) {
+            LOG.debug("Not provisioning {}, too many provisioning requests are queued", name);
+            return false;
+        }
+        Future<Boolean> future;
+        try {
+            future = submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        return (tryUser && provision(name, false)) || (tryRole && provision(name, true));
+                    } finally {
+                        jitSlots.release();
+                    }
+                }
+            });
+        } catch (IllegalStateException e) {
+            jitSlots.release();
+            return false;
+        } catch (RejectedExecutionException e) {
+            jitSlots.release();
+            return false;
+        }
+        try {
+            return future.get(jitTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("Provisioning " + name + " did not finish in " + jitTimeout + "ms, it continues in the background");
+        } catch (ExecutionException e) {
+            LOG.error("Exception provisioning " + name, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Reads a single user or role from IAM and adds its entries. Runs on the poller thread.
+     */
+    private boolean provision(String name, boolean role) {
+        if (!bootstrapped || isKnownMiss(name, role)) return false;
+        String key = missKey(name, role);
+        try {
+            IAMState state = fetcher.fetchPrincipal(name, role);
+            Map<String, Entry> desired = state != null ? buildDesired(state) : Collections.<String, Entry>emptyMap();
+            Entry account = null;
+            for (Entry entry : desired.values()) {
+                if (entry.hasObjectClass("iamaccount")) {
+                    account = entry;
+                }
+            }
+            if (account == null) {
+                if (jitMisses.size() > 10000) {
+                    jitMisses.clear();
+                }
+                jitMisses.put(key, System.currentTimeMillis() + jitNegativeTTL);
+                LOG.debug("{} is not an IAM account that can be provisioned", name);
+                return false;
+            }
+            String uid = account.get("uid").getString();
+            for (Entry entry : desired.values()) {
+                provisionEntry(entry, uid);
+            }
+            updateAccountIndex(account);
+            IAMGeneration.advance();
+            LOG.info("Provisioned " + account.getDn() + " ahead of the next poll");
+            return true;
+        } catch (Throwable e) {
+            LOG.error("Exception provisioning " + name, e);
+            return false;
+        }
+    }
+
+    private static String missKey(String name, boolean role) {
+        return (role ? "role:" : "user:") + name.toLowerCase();
+    }
+
+    /**
+     * @return true if the name was recently looked up in IAM and not found
+     */
+    private boolean isKnownMiss(String name, boolean role) {
+        String key = missKey(name, role);
+        Long until = jitMisses.get(key);
+        if (until == null) return false;
+        if (until > System.currentTimeMillis()) return true;
+        jitMisses.remove(key);
+        return false;
+    }
+
+    private synchronized boolean allowProvisioning() {
+        long now = System.currentTimeMillis();
+        if (now - jitWindowStart >= 60000) {
+            jitWindowStart = now;
+            jitWindowCount = 0;
+        }
+        return jitWindowCount++ < jitRateLimit;
+    }
+
+    /**
+     * Adds the entry if it does not exist, or adds the provisioned account to the members of an existing group.
+     */
+    private void provisionEntry(Entry entry, String uid) throws LdapException {
+        Entry existing = currentEntry(entry.getDn());
+        if (existing == null) {
+            putEntry(entry, null);
+        } else if (existing.hasObjectClass("iamgroup") && !existing.contains("memberUid", uid)) {
+            setMember(existing, uid, true);
+        }
+    }
+
+    /**
+     * Re-reads a single user or role from IAM and brings its entry and group memberships in line with it,
+     * removing the entry if the principal is gone or no longer usable. Runs on the poller thread.
+     */
+    private void refreshPrincipal(String name, boolean role) throws LdapException, ParseException, IOException, CursorException {
+        IAMState state = fetcher.fetchPrincipal(name, role);
+        Map<String, Entry> desired = state != null ? buildDesired(state) : Collections.<String, Entry>emptyMap();
+        Entry account = null;
+        for (Entry entry : desired.values()) {
+            if (entry.hasObjectClass("iamaccount")) {
+                account = entry;
+            }
+        }
+        String uid = account != null ? account.get("uid").getString() : name;
+        Set<String> memberOf = new HashSet<String>();
+        for (Entry entry : desired.values()) {
+            if (entry == account) {
+                putEntry(entry, currentEntry(entry.getDn()));
+            } else if (account != null) {
+                memberOf.add(entry.getDn().getNormName());
+                provisionEntry(entry, uid);
+            }
+        }
+        if (account == null) {
+            Entry existing = currentEntry(directory.getDnFactory().create(String.format(role ? ROLE_FMT : USER_FMT, name)));
+            if (existing != null) {
+                removeEntry(existing);
+            }
+        }
+        for (Entry group : groupsWithMember(uid)) {
+            if (!memberOf.contains(group.getDn().getNormName())) {
+                setMember(group, uid, false);
+            }
+        }
+        IAMGeneration.advance();
+        LOG.info("Refreshed " + (role ? "role " : "user ") + name + " from IAM");
+    }
+
+    /**
+     * Adds a group created in IAM, or removes one deleted from it. Runs on the poller thread.
+     */
+    private void refreshGroup(String name) throws LdapException {
+        Group group = fetcher.fetchGroup(name);
+        Dn dn = directory.getDnFactory().create(String.format(GROUP_FMT, name));
+        Entry existing = currentEntry(dn);
+        if (group != null && existing == null) {
+            putEntry(addGroup(group, new HashMap<String, Entry>()), null);
+        } else if (group == null && existing != null) {
+            removeEntry(existing);
+        } else {
+            return;
+        }
+        IAMGeneration.advance();
+        LOG.info("Refreshed group " + name + " from IAM");
+    }
+
+    private Entry currentEntry(Dn dn) throws LdapException {
+        if (partition != null) {
+            return partition.getEntries().get(dn.getNormName());
+        }
+        if (!directory.getPartitionNexus().hasEntry(new HasEntryOperationContext(directory.getAdminSession(), dn))) {
+            return null;
+        }
+        return directory.getPartitionNexus().lookup(new LookupOperationContext(directory.getAdminSession(),
+                dn, SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES));
+    }
+
+    /**
+     * Adds the desired entry, or updates the managed attributes of the existing one.
+     */
+    private void putEntry(Entry entry, Entry existing) throws LdapException {
+        if (existing == null) {
+            entry.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
+            entry.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+            if (partition != null) {
+                partition.update(entry, true);
+            } else {
+                add(entry);
+            }
+        } else {
+            List<Modification> mods = diff(existing, entry);
+            if (mods.isEmpty()) return;
+            if (partition != null) {
+                Entry updated = existing.clone();
+                for (Modification mod : mods) {
+                    if (mod.getOperation() == ModificationOperation.REPLACE_ATTRIBUTE) {
+                        updated.put(mod.getAttribute());
+                    } else {
+                        updated.removeAttributes(mod.getAttribute().getUpId());
+                    }
+                }
+                updated.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
+                partition.update(updated, false);
+            } else {
+                directory.getAdminSession().modify(existing.getDn(), mods);
+            }
+            invalidateCredentials(existing, entry.get("accessKey") != null ? entry.get("accessKey").getString() : null);
+        }
+        if (entry.hasObjectClass("iamaccount")) {
+            updateAccountIndex(entry);
+        }
+    }
+
+    private void removeEntry(Entry existing) throws LdapException {
+        if (partition != null) {
+            partition.remove(existing.getDn());
+        } else {
+            directory.getAdminSession().delete(existing.getDn());
+        }
+        invalidateCredentials(existing, null);
+        if (accountIndex != null) {
+            accountIndex.remove(existing.getDn());
+        }
+    }
+
+    private void setMember(Entry group, String uid, boolean member) throws LdapException {
+        if (partition != null) {
+            Entry updated = group.clone();
+            if (member) {
+                updated.add("memberUid", uid);
+            } else {
+                updated.remove("memberUid", uid);
+            }
+            partition.update(updated, false);
+        } else {
+            directory.getAdminSession().modify(group.getDn(), new DefaultModification(
+                    member ? ModificationOperation.ADD_ATTRIBUTE : ModificationOperation.REMOVE_ATTRIBUTE, "memberUid", uid));
+        }
+    }
+
+    private Collection<Entry> groupsWithMember(String uid) throws LdapException, ParseException, IOException, CursorException {
+        if (partition == null) {
+            // IAM names are limited to [\w+=,.@-], none of which needs escaping in a filter
+            return search(groupsDN, "(&(objectClass=iamgroup)(memberUid=" + uid + "))");
+        }
+        List<Entry> groups = new ArrayList<Entry>();
+        for (Entry entry : partition.getEntries().values()) {
+            if (entry.hasObjectClass("iamgroup") && entry.contains("memberUid", uid)) {
+                groups.add(entry);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Queues a refresh of a single user or role on the poller thread, so it never overlaps a poll.
+     */
+    public Future<?> requestUserRefresh(final String name, final boolean role) {
+        return submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                refreshPrincipal(name, role);
+                return null;
+            }
+        });
+    }
+
+    public Future<?> requestGroupRefresh(final String name) {
+        return submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                refreshGroup(name);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Queues a full poll, unless one is already queued.
+     */
+    public Future<?> requestPoll() {
+        if (!pollRequested.compareAndSet(false, true)) {
+            return null;
+        }
+        try {
+            return submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    pollRequested.set(false);
+                    runPoll();
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            pollRequested.set(false);
+            throw e;
+        }
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        if (executor == null || !bootstrapped) {
+            throw new IllegalStateException("The IAM poller is not ready");
+        }
+        return executor.submit(task);
+    }
+
+    /**
+     * Stores the credential verifier of a successfully verified account on its entry. The write is queued on
+     * the poller thread, off the bind thread and never concurrently with a poll publishing the entries.
+     */
+    public void storeVerifier(final Dn dn, final String verifier) {
+        for (LDAPIAMPoller poller : accounts) {
+            if (poller.rootDn != null && dn.isDescendantOf(poller.rootDn)) {
+                poller.storeVerifier(dn, verifier);
+                return;
+            }
+        }
+        if (executor == null) return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeVerifier(dn, verifier);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Not storing the credential verifier of {}, the IAM poller is stopping", dn);
+        }
+    }
+
+    private void writeVerifier(Dn dn, String verifier) {
+        try {
+            if (partition != null) {
+                Entry entry = partition.getEntries().get(dn.getNormName());
+                if (entry == null) return;
+                entry = entry.clone();
+                entry.put(PasswordVerifier.ATTRIBUTE, verifier);
+                if (!partition.update(entry, false)) return;
+            } else {
+                directory.getAdminSession().modify(dn, new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE,
+                        PasswordVerifier.ATTRIBUTE, verifier));
+            }
+            if (accountIndex != null) {
+                accountIndex.setVerifier(dn, verifier);
+            }
+        } catch (Throwable e) {
+            LOG.warn("Unable to store the credential verifier of " + dn, e);
+        }
+    }
+
+    private void updateAccountIndex(Entry entry) throws LdapException {
+        if (accountIndex != null) {
+            accountIndex.put(entry);
         }
     }
 
     private void createEntry(String dn, String clazz) throws LdapException {
+        add(newEntry(dn, clazz));
+    }
+
+    private Entry newEntry(String dn, String... classes) throws LdapException {
         Dn dnObj = directory.getDnFactory().create(dn);
         Rdn rdn = dnObj.getRdn(0);
         DefaultEntry entry = new DefaultEntry(directory.getSchemaManager(), dn);
         entry.put(rdn.getType(), rdn.getValue());
         entry.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
         entry.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
-        entry.put("objectclass", clazz);
-        add(entry);
+        entry.put("objectclass", classes);
+        return entry;
     }
 
-    private void pollIAM() {
+    /**
+     * Serves the rootDN from an {@link IAMPartition} in place of any partition configured for it, publishing
+     * the root and the ou entries with every generation.
+     */
+    private void installPartition() throws LdapException {
+        try {
+            partition = new IAMPartition(directory.getSchemaManager(), directory.getDnFactory().create(rootDN));
+            if (account != null) {
+                partition.setId("iam-" + account);
+            }
+            for (Partition existing : new ArrayList<Partition>(directory.getPartitions())) {
+                if (existing.getSuffixDn().equals(partition.getSuffixDn())) {
+                    LOG.warn("Replacing partition " + existing.getId() + " with the in-memory IAM partition for " + rootDN);
+                    directory.removePartition(existing);
+                }
+            }
+            directory.addPartition(partition);
+            String rootType = partition.getSuffixDn().getRdn().getNormType();
+            baseEntries = new ArrayList<Entry>();
+            baseEntries.add(newEntry(rootDN, "top", "dc".equals(rootType) ? "domain"
+                    : "o".equals(rootType) ? "organization" : "ou".equals(rootType) ? "organizationalUnit" : "extensibleObject"));
+            baseEntries.add(newEntry(usersDN, "top", "organizationalUnit"));
+            baseEntries.add(newEntry(groupsDN, "top", "organizationalUnit"));
+            baseEntries.add(newEntry(rolesDN, "top", "organizationalUnit"));
+            partition.publish(baseEntries);
+        } catch (LdapException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new LdapException("Unable to install the IAM partition for " + rootDN, e);
+        }
+    }
+
+    /**
+     * STARTING until the ID allocators are ready and the first poll has completed, serving the entries
+     * already in the partition meanwhile. DEGRADED while the allocators cannot be prepared or polls fail.
+     */
+    public enum State { STARTING, READY, DEGRADED }
+
+    /**
+     * @return the state of the poller, together with those of the additional accounts: READY once all of
+     * them are, DEGRADED if any of them is
+     */
+    public State getState() {
+        State state = readiness;
+        for (LDAPIAMPoller poller : accounts) {
+            if (poller.readiness == State.DEGRADED || state == State.READY) {
+                state = poller.readiness;
+            }
+        }
+        return state;
+    }
+
+    private boolean bootstrap() {
+        if (bootstrapped) return true;
+        if (main != null) {
+            // The allocators belong to the main poller, which prepares them once for all accounts
+            bootstrapped = main.bootstrap();
+            if (!bootstrapped) {
+                readiness = State.DEGRADED;
+            }
+            return bootstrapped;
+        }
+        synchronized (bootstrapLock) {
+            if (bootstrapped) return true;
+            try {
+                userIDAllocator.init(bootstrapTimeout * 1000L);
+                groupIDAllocator.init(bootstrapTimeout * 1000L);
+                bootstrapped = true;
+                LOG.info("ID allocators are ready");
+            } catch (Throwable e) {
+                LOG.error("Unable to prepare the ID allocators, will retry on the next poll", e);
+                readiness = State.DEGRADED;
+            }
+        }
+        return bootstrapped;
+    }
+
+    /**
+     * @return true if IAM was read and applied
+     */
+    private boolean pollIAM() {
+        if (!bootstrap()) return false;
         LOG.info("*** Updating accounts from IAM");
         try {
-            clearDNs();
-            populateGroupsFromIAM();
-            populateUsersFromIAM();
-//            populateRolesFromIAM();
+            long start = System.nanoTime();
+            IAMState state = fetcher.fetch();
+            fetchDuration.recordSince(start);
+            Map<String, String> hashes = sync(state);
+            pollDuration.recordSince(start);
+            if (!state.isIncomplete()) {
+                saveSnapshot(new SyncSnapshot(state, userIDs, groupIDs, hashes, currentVerifiers()));
+            }
+            readiness = State.READY;
+            LOG.info("*** IAM account update finished");
+            return true;
         } catch (Throwable e) {
             LOG.error("Exception polling", e);
+            readiness = State.DEGRADED;
+            return false;
         }
-        LOG.info("*** IAM account update finished");
     }
 
-    private void clearDNs() throws LdapException, IOException, ParseException, CursorException {
-        if (firstRun) {
-            firstRun = false;
-            clearDN(usersDN);
-            clearDN(groupsDN);
-            clearDN(rolesDN);
+    /**
+     * Runs a poll on the poller thread, so that polls never overlap, and schedules the next one once it
+     * has completed. A requested poll replaces the scheduled one.
+     */
+    private void runPoll() {
+        synchronized (this) {
+            if (nextPoll != null) {
+                nextPoll.cancel(false);
+                nextPoll = null;
+            }
         }
+        long throttledBefore = iamThrottled.get();
+        lastChanges = 0;
+        boolean succeeded = pollIAM();
+        adaptInterval(succeeded, iamThrottled.get() > throttledBefore, lastChanges);
+        schedulePoll(pollInterval);
     }
 
-    private void populateRolesFromIAM() {
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(credentials);
+    /**
+     * Polls more often while IAM is changing and less often while it is throttling or failing, within
+     * minPollPeriod and maxPollPeriod, and otherwise drifts back to pollPeriod.
+     */
+    private void adaptInterval(boolean succeeded, boolean throttled, int changes) {
+        long interval = pollInterval;
+        if (!succeeded || throttled) {
+            interval = Math.min(maxPollPeriod, interval * 2);
+        } else if (changes > 0) {
+            interval = Math.max(minPollPeriod, interval / 2);
+        } else if (interval < pollPeriod) {
+            interval = Math.min(pollPeriod, interval * 2);
+        } else {
+            interval = Math.max(pollPeriod, interval / 2);
+        }
+        if (interval != pollInterval) {
+            LOG.info("Polling IAM every " + interval + "s" + (throttled ? ", IAM is throttling" : !succeeded ? ", last poll failed" : ""));
+        }
+        pollInterval = interval;
+        intervalSeconds.set(interval);
+    }
+
+    /**
+     * Schedules the next poll in the given number of seconds, give or take the jitter, so that replicas
+     * started together do not poll IAM in lockstep.
+     */
+    private synchronized void schedulePoll(long seconds) {
+        if (executor == null || executor.isShutdown()) return;
+        long delay = Math.round(seconds * 1000 * (1 + pollJitter * (2 * random.nextDouble() - 1)));
+        nextPoll = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runPoll();
+            }
+        }, Math.max(1000, delay), TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Brings the entries in line with the state read from IAM: resolves the IDs, builds the desired entries
+     * and applies the difference to the directory.
+     *
+     * @return the content hash of every desired entry by normalized DN
+     */
+    Map<String, String> sync(IAMState state) throws LdapException, ParseException, IOException, CursorException {
+        long start = System.nanoTime();
+        resolveIDs(state);
+        long resolved = System.nanoTime();
+        resolveDuration.recordSince(start);
+        Map<String, Entry> desired = buildDesired(state);
+        long built = System.nanoTime();
+        buildDuration.recordSince(resolved);
+        Map<String, String> hashes = applyChanges(desired, loadCurrent(), state.isIncomplete());
+        applyDuration.recordSince(built);
+        return hashes;
+    }
+
+    Map<String, Entry> buildDesired(IAMState state) {
+        Map<String, Entry> desired = new LinkedHashMap<String, Entry>();
+        populateGroupsFromIAM(state, desired);
+        populateUsersFromIAM(state, desired);
+        if (syncRoles) {
+            populateRolesFromIAM(state, desired);
+        }
+        return desired;
+    }
+
+    /**
+     * Checks the entries left in the partition against the snapshot of the last complete sync and repairs
+     * them from it, so that they are correct while the first poll of IAM runs.
+     */
+    private void warmStart() {
+        SyncSnapshot snapshot = SyncSnapshot.load(snapshotFile);
+        if (snapshot == null) {
+            LOG.info("No sync snapshot found, entries will be reconciled by the first poll");
+            return;
+        }
+        lastSnapshot = snapshot;
         try {
-            ListRolesResult res = client.listRoles();
-            while (true) {
-                for (Role role : res.getRoles()) {
-                    try {
-                        Entry groupEntry = getOrCreateRoleGroup(role);
-                        addRole(role, groupEntry);
-                        LOG.info("Added role " + role.getRoleName() + " at " + rolesDN);
-                    } catch (Throwable e) {
-                        LOG.error("Exception processing role " + role.getRoleName(), e);
-                    }
-                }
-                if (res.isTruncated()) {
-                    res = client.listRoles(new ListRolesRequest().withMarker(res.getMarker()));
-                } else {
-                    break;
+            Map<String, Entry> current = loadCurrent();
+            boolean intact = current.size() == snapshot.getHashes().size();
+            for (Iterator<Map.Entry<String, Entry>> it = current.entrySet().iterator(); intact && it.hasNext(); ) {
+                Map.Entry<String, Entry> entry = it.next();
+                intact = contentHash(entry.getValue()).equals(snapshot.getHashes().get(entry.getKey()));
+            }
+            if (intact) {
+                LOG.info("All " + current.size() + " entries match the sync snapshot");
+                return;
+            }
+            userIDs = snapshot.getUserIDs();
+            groupIDs = snapshot.getGroupIDs();
+            Map<String, Entry> desired = buildDesired(snapshot.getState());
+            if (partition != null) {
+                restoreVerifiers(desired, snapshot.getVerifiers());
+            }
+            applyChanges(desired, current, false);
+            LOG.info("Repaired entries from the sync snapshot");
+        } catch (Throwable e) {
+            LOG.error("Exception restoring the sync snapshot", e);
+        }
+    }
+
+    /**
+     * Puts the verifiers saved with the snapshot back on the entries, unless the access key of the entry is
+     * no longer the one the verifier was created for.
+     */
+    private void restoreVerifiers(Map<String, Entry> desired, Map<String, String> verifiers) throws LdapException {
+        int restored = 0;
+        for (Map.Entry<String, String> saved : verifiers.entrySet()) {
+            Entry entry = desired.get(saved.getKey());
+            Attribute accessKey = entry != null ? entry.get("accessKey") : null;
+            if (accessKey != null && saved.getValue().startsWith(accessKey.getString() + "$")) {
+                entry.put(PasswordVerifier.ATTRIBUTE, saved.getValue());
+                restored++;
+            }
+        }
+        LOG.info("Restored " + restored + " credential verifiers from the sync snapshot");
+    }
+
+    /**
+     * @return the stored credential verifiers by normalized DN, kept in the snapshot when the entries are
+     * only held in memory by the IAM partition
+     */
+    private Map<String, String> currentVerifiers() {
+        Map<String, String> verifiers = new HashMap<String, String>();
+        if (partition == null) return verifiers;
+        for (Map.Entry<String, Entry> entry : partition.getEntries().entrySet()) {
+            Attribute verifier = entry.getValue().get(PasswordVerifier.ATTRIBUTE);
+            if (verifier != null) {
+                try {
+                    verifiers.put(entry.getKey(), verifier.getString());
+                } catch (LdapException e) {
+                    LOG.debug("Skipping the unreadable verifier of {}", entry.getKey());
                 }
             }
-        } finally {
-            client.shutdown();
         }
+        return verifiers;
     }
 
-    private Entry getOrCreateRoleGroup(Role role) throws LdapException {
-        Group group = new Group(role.getPath(), role.getRoleName(), role.getRoleId(), role.getArn(), role.getCreateDate());
-        return addGroup(group);
+    private void saveSnapshot(SyncSnapshot snapshot) {
+        lastSnapshot = snapshot;
+        try {
+            snapshot.save(snapshotFile);
+        } catch (IOException e) {
+            LOG.warn("Unable to save the sync snapshot to " + snapshotFile, e);
+        }
     }
 
-    private void addRole(Role role, Entry roleGroup) throws LdapException {
-        Entry existingRole = getExistingRole(role);
-        if (existingRole != null) {
-            directory.getAdminSession().modify(existingRole.getDn(),
-                    new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "accessKey", accessKey),
-                    new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "gidNumber", roleGroup.get("gidNumber").getString())
-            );
-            if (!roleGroup.contains("memberUid", role.getRoleName())) {
-                directory.getAdminSession().modify(roleGroup.getDn(),
-                        new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "memberUid", role.getRoleName()));
+    /**
+     * Resolves the IDs of every account and group seen in the poll up front, in batches.
+     */
+    void resolveIDs(IAMState state) {
+        List<String> userArns = new ArrayList<String>();
+        List<String> groupArns = new ArrayList<String>();
+        for (Group group : state.getGroups()) {
+            groupArns.add(group.getArn());
+        }
+        for (User user : state.getUsers()) {
+            if (state.getAccessKey(user.getUserName()) != null) {
+                userArns.add(user.getArn());
             }
-            return;
         }
+        for (Role role : state.getRoles()) {
+            userArns.add(role.getArn());
+            groupArns.add(role.getArn());
+        }
+        userIDs = userIDAllocator.allocateUIDs(userArns);
+        groupIDs = groupIDAllocator.allocateUIDs(groupArns);
+    }
 
-        DefaultEntry ent = new DefaultEntry(directory.getSchemaManager(), directory.getDnFactory().create(String.format(ROLE_FMT, role.getRoleName())));
-        ent.put(SchemaConstants.OBJECT_CLASS_AT, "posixAccount", "shadowAccount", "iamaccount", "iamrole");
-        ent.put("accessKey", role.getRoleId());
-        ent.put("uid", role.getRoleName());
-        ent.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
-        ent.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
-        ent.put("cn", role.getRoleName());
-        ent.put("uidNumber", allocateUserID(role.getArn()));
-        ent.put("gidNumber", roleGroup.get("gidNumber").getString());
-        ent.put("shadowLastChange", "10877");
-        ent.put("shadowExpire", "-1");
-        ent.put("shadowInactive", "-1");
-        ent.put("shadowFlag", "0");
-        ent.put("shadowWarning", "7");
-        ent.put("shadowMin", "0");
-        ent.put("shadowMax", "999999");
-        ent.put("loginshell", "/bin/bash");
-        ent.put("homedirectory", "/home/" + role.getRoleName());
-        add(ent);
+    /**
+     * @return the IAM entries currently under the users, groups and roles subtrees by normalized DN
+     */
+    private Map<String, Entry> loadCurrent() throws LdapException, ParseException, IOException, CursorException {
+        Map<String, Entry> current = new HashMap<String, Entry>();
+        if (partition != null) {
+            for (Map.Entry<String, Entry> entry : partition.getEntries().entrySet()) {
+                if (entry.getValue().hasObjectClass("iamaccount") || entry.getValue().hasObjectClass("iamgroup")) {
+                    current.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return current;
+        }
+        String[] subtrees = syncRoles ? new String[] {groupsDN, usersDN, rolesDN} : new String[] {groupsDN, usersDN};
+        for (String dn : subtrees) {
+            for (Entry entry : search(dn, "(|(objectClass=iamaccount)(objectClass=iamgroup))")) {
+                current.put(entry.getDn().getNormName(), entry);
+            }
+        }
+        return current;
+    }
 
-        directory.getAdminSession().modify(roleGroup.getDn(),
-                new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "memberUid", role.getRoleName()));
+    /**
+     * Brings the users, groups and roles subtrees in line with the desired entries built from IAM, writing
+     * only the entries that were added, changed or removed since the previous poll. Entries whose content
+     * hash matches are skipped without comparing attributes.
+     *
+     * @return the content hash of every desired entry by normalized DN
+     */
+    private Map<String, String> applyChanges(Map<String, Entry> desired, Map<String, Entry> current, boolean incomplete) throws LdapException {
+        if (partition != null) {
+            return publish(desired, current, incomplete);
+        }
+        Map<String, String> hashes = new HashMap<String, String>();
+        int added = 0, modified = 0, deleted = 0;
+        for (Map.Entry<String, Entry> desiredEntry : desired.entrySet()) {
+            Entry entry = desiredEntry.getValue();
+            try {
+                String hash = contentHash(entry);
+                hashes.put(desiredEntry.getKey(), hash);
+                Entry existing = current.remove(desiredEntry.getKey());
+                if (existing != null && hash.equals(contentHash(existing))) {
+                    continue;
+                }
+                if (existing == null) {
+                    entry.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
+                    entry.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+                    add(entry);
+                    updateAccountIndex(entry);
+                    LOG.debug("Added {}", entry.getDn());
+                    added++;
+                } else {
+                    List<Modification> mods = diff(existing, entry);
+                    if (!mods.isEmpty()) {
+                        invalidateCredentials(existing, entry.get("accessKey") != null ? entry.get("accessKey").getString() : null);
+                        directory.getAdminSession().modify(existing.getDn(), mods);
+                        updateAccountIndex(entry);
+                        LOG.debug("Modified {}", entry.getDn());
+                        modified++;
+                    }
+                }
+            } catch (Throwable e) {
+                LOG.error("Exception applying " + entry.getDn(), e);
+            }
+        }
+        if (incomplete && !current.isEmpty()) {
+            LOG.warn("Not deleting " + current.size() + " entries as some IAM accounts could not be read in this poll");
+            current.clear();
+        }
+        for (Entry stale : current.values()) {
+            try {
+                directory.getAdminSession().delete(stale.getDn());
+                invalidateCredentials(stale, null);
+                if (accountIndex != null) {
+                    accountIndex.remove(stale.getDn());
+                }
+                LOG.debug("Deleted {}", stale.getDn());
+                deleted++;
+            } catch (Throwable e) {
+                LOG.error("Exception deleting " + stale.getDn(), e);
+            }
+        }
+        if (added + modified + deleted > 0) {
+            IAMGeneration.advance();
+        }
+        recordChanges(added, modified, deleted);
+        LOG.info("Applied " + added + " additions, " + modified + " modifications and " + deleted + " deletions");
+        return hashes;
     }
 
-    private Entry getExistingRole(Role role) throws LdapException {
-        LookupOperationContext lookupContext = new LookupOperationContext( directory.getAdminSession(),
-                directory.getDnFactory().create(String.format(ROLE_FMT, role.getRoleName())), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+    /**
+     * Publishes the desired entries as the next generation of the IAM partition in one step. Unchanged
+     * entries are carried over as they are, and cached credentials and the bind index are only updated
+     * once the new generation is visible.
+     *
+     * @return the content hash of every desired entry by normalized DN
+     */
+    private Map<String, String> publish(Map<String, Entry> desired, Map<String, Entry> current, boolean incomplete) throws LdapException {
+        Map<String, String> hashes = new HashMap<String, String>();
+        List<Entry> entries = new ArrayList<Entry>(baseEntries);
+        Map<Entry, String> changedKeys = new HashMap<Entry, String>();
+        int added = 0, modified = 0;
+        for (Map.Entry<String, Entry> desiredEntry : desired.entrySet()) {
+            Entry entry = desiredEntry.getValue();
+            String hash = contentHash(entry);
+            hashes.put(desiredEntry.getKey(), hash);
+            Entry existing = current.remove(desiredEntry.getKey());
+            if (existing != null && hash.equals(contentHash(existing))) {
+                entries.add(existing);
+                continue;
+            }
+            Attribute uuid = existing != null ? existing.get(SchemaConstants.ENTRY_UUID_AT) : null;
+            Attribute verifier = existing != null ? existing.get(PasswordVerifier.ATTRIBUTE) : null;
+            if (verifier != null && sameValues(existing.get("accessKey"), entry.get("accessKey"))) {
+                entry.put(verifier.clone());
+            }
+            entry.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
+            entry.put(SchemaConstants.ENTRY_UUID_AT, uuid != null ? uuid.getString() : UUID.randomUUID().toString());
+            entries.add(entry);
+            if (existing == null) {
+                added++;
+            } else {
+                changedKeys.put(existing, entry.get("accessKey") != null ? entry.get("accessKey").getString() : null);
+                modified++;
+            }
+        }
+        if (incomplete && !current.isEmpty()) {
+            LOG.warn("Keeping " + current.size() + " entries as some IAM accounts could not be read in this poll");
+            entries.addAll(current.values());
+            current.clear();
+        }
+        partition.publish(entries);
 
-        try {
-            Entry roleEntry = directory.getPartitionNexus().lookup( lookupContext );
-            if (roleEntry != null && roleEntry.hasObjectClass("iamaccount")) {
-                return roleEntry;
+        for (Map.Entry<Entry, String> changed : changedKeys.entrySet()) {
+            invalidateCredentials(changed.getKey(), changed.getValue());
+        }
+        for (Entry stale : current.values()) {
+            invalidateCredentials(stale, null);
+            if (accountIndex != null) {
+                accountIndex.remove(stale.getDn());
             }
-        } catch (LdapNoSuchObjectException e) {
-            // Fallthrough
         }
-        return null;
+        for (Entry entry : entries) {
+            if (entry.hasObjectClass("iamaccount")) {
+                updateAccountIndex(entry);
+            }
+        }
+        if (added + modified + current.size() > 0) {
+            IAMGeneration.advance();
+        }
+        recordChanges(added, modified, current.size());
+        LOG.info("Published " + added + " additions, " + modified + " modifications and " + current.size() + " deletions");
+        return hashes;
     }
 
-    private void populateGroupsFromIAM() {
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(credentials);
+    private void recordChanges(int added, int modified, int deleted) {
+        lastChanges = added + modified + deleted;
+        entriesAdded.addAndGet(added);
+        entriesModified.addAndGet(modified);
+        entriesDeleted.addAndGet(deleted);
+        lastAdded.set(added);
+        lastModified.set(modified);
+        lastDeleted.set(deleted);
+    }
 
+    /**
+     * @return a hash of the managed attributes of the entry, independent of attribute and value order
+     */
+    private static String contentHash(Entry entry) throws LdapException {
         try {
-            ListGroupsResult res = client.listGroups();
-            while (true) {
-                for (Group group : res.getGroups()) {
-                    try {
-                        addGroup(group);
-                        LOG.info("Added group " + group.getGroupName() + " at " + groupsDN);
-                    } catch (Throwable e) {
-                        LOG.error("Exception processing group " + group.getGroupName(), e);
-                    }
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String id : MANAGED_ATTRIBUTES) {
+                Attribute attr = entry.get(id);
+                if (attr == null) continue;
+                List<String> values = new ArrayList<String>();
+                for (Value<?> value : attr) {
+                    values.add(String.valueOf(value.getNormValue()));
                 }
-                if (res.isTruncated()) {
-                    res = client.listGroups(new ListGroupsRequest().withMarker(res.getMarker()));
-                } else {
-                    break;
+                Collections.sort(values);
+                digest.update(id.getBytes("UTF-8"));
+                for (String value : values) {
+                    digest.update((byte) 0);
+                    digest.update(value.getBytes("UTF-8"));
+                }
+                digest.update((byte) 1);
+            }
+            return Base64.encodeBase64String(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the modifications that turn the managed attributes of the existing entry into those of the desired one
+     */
+    private List<Modification> diff(Entry existing, Entry desired) throws LdapException {
+        List<Modification> mods = new ArrayList<Modification>();
+        for (String id : MANAGED_ATTRIBUTES) {
+            Attribute want = desired.get(id);
+            Attribute have = existing.get(id);
+            if (want == null) {
+                if (have != null) {
+                    mods.add(new DefaultModification(ModificationOperation.REMOVE_ATTRIBUTE, have.getUpId()));
                 }
+            } else if (!sameValues(have, want)) {
+                mods.add(new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, want));
+            }
+        }
+        Attribute verifier = existing.get(PasswordVerifier.ATTRIBUTE);
+        if (verifier != null && !sameValues(existing.get("accessKey"), desired.get("accessKey"))) {
+            mods.add(new DefaultModification(ModificationOperation.REMOVE_ATTRIBUTE, verifier.getUpId()));
+        }
+        return mods;
+    }
+
+    private boolean sameValues(Attribute have, Attribute want) {
+        if (want == null) return have == null;
+        if (have == null || have.size() != want.size()) return false;
+        for (Value<?> value : want) {
+            if (!have.contains(value)) return false;
+        }
+        return true;
+    }
+
+    private void populateRolesFromIAM(IAMState state, Map<String, Entry> desired) {
+        for (Role role : state.getRoles()) {
+            try {
+                Entry groupEntry = getOrCreateRoleGroup(role, desired);
+                addRole(role, groupEntry, desired);
+                LOG.debug("Added role {} at {}", role.getRoleName(), rolesDN);
+            } catch (Throwable e) {
+                LOG.error("Exception processing role " + role.getRoleName(), e);
+                state.setIncomplete(true);
+            }
+        }
+    }
+
+    private Entry getOrCreateRoleGroup(Role role, Map<String, Entry> desired) throws LdapException {
+        Group group = new Group(role.getPath(), role.getRoleName(), role.getRoleId(), role.getArn(), role.getCreateDate());
+        return addGroup(group, desired);
+    }
+
+    private void addRole(Role role, Entry roleGroup, Map<String, Entry> desired) throws LdapException {
+        DefaultEntry ent = new DefaultEntry(directory.getSchemaManager(), directory.getDnFactory().create(String.format(ROLE_FMT, role.getRoleName())));
+        ent.put(SchemaConstants.OBJECT_CLASS_AT, "top", "posixAccount", "shadowAccount", "iamaccount", "iamrole");
+        ent.put("accessKey", role.getRoleId());
+        ent.put("uid", role.getRoleName());
+        ent.put("cn", role.getRoleName());
+        ent.put("uidNumber", allocateUserID(role.getArn()));
+        ent.put("gidNumber", roleGroup.get("gidNumber").getString());
+        putAccountDefaults(ent, role.getRoleName());
+        desired.put(ent.getDn().getNormName(), ent);
+
+        addMember(roleGroup, role.getRoleName());
+    }
+
+    private void populateGroupsFromIAM(IAMState state, Map<String, Entry> desired) {
+        for (Group group : state.getGroups()) {
+            try {
+                addGroup(group, desired);
+                LOG.debug("Added group {} at {}", group.getGroupName(), groupsDN);
+            } catch (Throwable e) {
+                LOG.error("Exception processing group " + group.getGroupName(), e);
+                state.setIncomplete(true);
             }
-        } finally {
-            client.shutdown();
         }
     }
 
-    private Entry addGroup(Group iamGroup) throws LdapException {
-        Entry existingGroup = getExistingGroup(iamGroup);
+    private Entry addGroup(Group iamGroup, Map<String, Entry> desired) throws LdapException {
+        Dn dn = directory.getDnFactory().create(String.format(GROUP_FMT, iamGroup.getGroupName()));
+        Entry existingGroup = desired.get(dn.getNormName());
         if (existingGroup != null) {
             return existingGroup;
         }
 
         String gid = allocateGroupID(iamGroup.getArn());
-        Entry group = new DefaultEntry(directory.getSchemaManager(), directory.getDnFactory().create(String.format(GROUP_FMT, iamGroup.getGroupName())));
-        group.put(SchemaConstants.OBJECT_CLASS_AT, "posixGroup", "iamgroup");
+        Entry group = new DefaultEntry(directory.getSchemaManager(), dn);
+        group.put(SchemaConstants.OBJECT_CLASS_AT, "top", "posixGroup", "iamgroup");
         group.put("gidNumber", gid);
-        group.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
         group.put(SchemaConstants.CN_AT, iamGroup.getGroupName());
-        group.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
-        add(group);
+        desired.put(dn.getNormName(), group);
         return group;
     }
 
-    private Entry getExistingGroup(Group iamGroup) throws LdapException {
-
-        LookupOperationContext lookupContext = new LookupOperationContext( directory.getAdminSession(),
-                directory.getDnFactory().create(String.format(GROUP_FMT, iamGroup.getGroupName())),
-                SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+    private Entry getGroup(String groupName, Map<String, Entry> desired) throws LdapException {
+        return desired.get(directory.getDnFactory().create(String.format(GROUP_FMT, groupName)).getNormName());
+    }
 
-        try {
-            Entry groupEntry = directory.getPartitionNexus().lookup( lookupContext );
-            if (groupEntry != null && groupEntry.hasObjectClass("iamgroup")) {
-                return groupEntry;
-            }
-        } catch (LdapNoSuchObjectException e) {
-            // Fallthrough
+    private void addMember(Entry group, String uid) throws LdapException {
+        if (!group.contains("memberUid", uid)) {
+            group.add("memberUid", uid);
         }
-        return null;
     }
 
     private void add(Entry entry) throws LdapException {
@@ -350,82 +1422,53 @@ public class LDAPIAMPoller {
     }
 
     private String allocateGroupID(String groupName) {
-        return groupIDAllocator.allocateUID(groupName);
+        String id = groupIDs.get(groupName);
+        return id != null ? id : groupIDAllocator.allocateUID(groupName);
     }
 
-    private void populateUsersFromIAM() {
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(credentials);
-
-        try {
-            ListUsersResult res = client.listUsers();
-            while (true) {
-                for (User user : res.getUsers()) {
-                    try {
-                        Collection<Group> groups = client.listGroupsForUser(new ListGroupsForUserRequest(user.getUserName())).getGroups();
-                        Group primaryGroup = groups.size() > 0 ? groups.iterator().next() : null;
-                        if (primaryGroup == null) {
-                            LOG.warn("Unable to determine primary group for " + user.getUserName());
-                            continue;
-                        }
-                        Entry groupEntry = getExistingGroup(primaryGroup);
-                        if (groupEntry == null) {
-                            LOG.warn("Unable to retrieve matching group entry for group " + primaryGroup.getGroupName() + " user " + user.getUserName());
-                            continue;
-                        }
-                        addUser(user, getUserAccessKey(client, user), groupEntry);
-                        LOG.info("Added user " + user.getUserName());
-                    } catch (Throwable e) {
-                        LOG.error("Exception processing user " + user.getUserName(), e);
-                    }
+    private void populateUsersFromIAM(IAMState state, Map<String, Entry> desired) {
+        for (User user : state.getUsers()) {
+            try {
+                List<String> groups = state.getUserGroups(user.getUserName());
+                String primaryGroup = groups.size() > 0 ? groups.get(0) : null;
+                if (primaryGroup == null) {
+                    LOG.warn("Unable to determine primary group for " + user.getUserName());
+                    continue;
                 }
-                if (res.isTruncated()) {
-                    res = client.listUsers(new ListUsersRequest().withMarker(res.getMarker()));
-                } else {
-                    break;
+                Entry groupEntry = getGroup(primaryGroup, desired);
+                if (groupEntry == null) {
+                    LOG.warn("Unable to retrieve matching group entry for group " + primaryGroup + " user " + user.getUserName());
+                    continue;
                 }
-            }
-        } finally {
-            client.shutdown();
-        }
-    }
-
-    private String getUserAccessKey(AmazonIdentityManagementClient client, User user) {
-        ListAccessKeysResult res = client.listAccessKeys(new ListAccessKeysRequest().withUserName(user.getUserName()));
-        for (AccessKeyMetadata meta : res.getAccessKeyMetadata()) {
-            if ("Active".equals(meta.getStatus())) {
-                return meta.getAccessKeyId();
+                addUser(user, state.getAccessKey(user.getUserName()), groupEntry, desired);
+                LOG.debug("Added user {}", user.getUserName());
+            } catch (Throwable e) {
+                LOG.error("Exception processing user " + user.getUserName(), e);
+                state.setIncomplete(true);
             }
         }
-        return null;
     }
 
-    private void addUser(User user, String accessKey, Entry group) throws LdapException {
+    private void addUser(User user, String accessKey, Entry group, Map<String, Entry> desired) throws LdapException {
         if (accessKey == null) {
-            LOG.info("User " + user.getUserName() + " has no active access keys");
-            return;
-        }
-        Entry existingUser = getExistingUser(user);
-        if (existingUser != null) {
-            directory.getAdminSession().modify(existingUser.getDn(),
-                    new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "accessKey", accessKey),
-                    new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "gidNumber", group.get("gidNumber").getString())
-            );
-            if (!group.contains("memberUid", user.getUserName())) {
-                directory.getAdminSession().modify(group.getDn(),
-                        new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "memberUid", user.getUserName()));
-            }
+            LOG.debug("User {} has no active access keys", user.getUserName());
             return;
         }
 
         DefaultEntry ent = new DefaultEntry(directory.getSchemaManager(), directory.getDnFactory().create(String.format(USER_FMT, user.getUserName())));
-        ent.put(SchemaConstants.OBJECT_CLASS_AT, "posixAccount", "shadowAccount", "iamaccount");
+        ent.put(SchemaConstants.OBJECT_CLASS_AT, "top", "posixAccount", "shadowAccount", "iamaccount");
         ent.put("accessKey", accessKey);
         ent.put("uid", user.getUserName());
-        ent.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
-        ent.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
         ent.put("cn", user.getUserName());
         ent.put("uidNumber", allocateUserID(user.getArn()));
         ent.put("gidNumber", group.get("gidNumber").getString());
+        putAccountDefaults(ent, user.getUserName());
+        desired.put(ent.getDn().getNormName(), ent);
+
+        addMember(group, user.getUserName());
+    }
+
+    private void putAccountDefaults(Entry ent, String name) throws LdapException {
         ent.put("shadowLastChange", "10877");
         ent.put("shadowExpire", "-1");
         ent.put("shadowInactive", "-1");
@@ -434,40 +1477,222 @@ public class LDAPIAMPoller {
         ent.put("shadowMin", "0");
         ent.put("shadowMax", "999999");
         ent.put("loginshell", "/bin/bash");
-        ent.put("homedirectory", "/home/" + user.getUserName());
-        add(ent);
+        ent.put("homedirectory", "/home/" + name);
+    }
+
+    private void invalidateCredentials(Entry existing, String newAccessKey) throws LdapException {
+        Attribute current = existing.get("accessKey");
+        if (credentialCache != null && current != null && !current.getString().equals(newAccessKey)) {
+            LOG.info("Access key of " + existing.getDn() + " has changed, dropping cached credentials");
+            credentialCache.invalidate(current.getString());
+        }
+    }
 
-        directory.getAdminSession().modify(group.getDn(),
-                new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "memberUid", user.getUserName()));
+    private String allocateUserID(String name) {
+        String id = userIDs.get(name);
+        return id != null ? id : userIDAllocator.allocateUID(name);
     }
 
-    private Entry getExistingUser(User user) throws LdapException {
-        LookupOperationContext lookupContext = new LookupOperationContext( directory.getAdminSession(),
-                directory.getDnFactory().create(String.format(USER_FMT, user.getUserName())), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+    public void start() {
+        LOG.info(account != null ? "IAMPoller started for account " + account : "IAMPoller started");
+        loadAccountIndex();
+        if (jitProvisioning) {
+            IAMProvisioning.register(this);
+        }
+        executor = Executors.newScheduledThreadPool(1);
+        if (snapshotFile != null) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmStart();
+                }
+            });
+        }
+        pollInterval = pollPeriod;
+        intervalSeconds.set(pollInterval);
+        schedulePoll(10);
+        if (main == null) {
+            listenForPollRequests();
+        }
+        if (eventQueueUrl != null) {
+            eventConsumer = new IAMEventConsumer(credentials, eventQueueUrl, eventQueueEndpoint, syncRoles, this);
+            eventConsumer.start();
+        }
+        if (main == null) {
+            startAccounts();
+        }
+    }
 
+    /**
+     * Starts a poller for every iamaccountconfig entry below the config entry, e.g.
+     * <pre>
+     * dn: cn=prod,cn=config,ads-authenticatorid=awsiamauthenticator,ou=authenticators,...
+     * objectClass: top
+     * objectClass: iamaccountconfig
+     * cn: prod
+     * rootDN: dc=prod,dc=iam
+     * roleArn: arn:aws:iam::123456789012:role/iam-ldap-bridge
+     * </pre>
+     * Each account is polled on its own thread, schedule and IAM rate limit, with the attributes it does not
+     * set taken from the config entry. Accounts whose rootDN overlaps that of another one are skipped.
+     */
+    private void startAccounts() {
+        List<Dn> roots = new ArrayList<Dn>();
+        if (rootDn != null) {
+            roots.add(rootDn);
+        }
         try {
-            Entry userEntry = directory.getPartitionNexus().lookup( lookupContext );
-            if (userEntry != null && userEntry.hasObjectClass("iamaccount")) {
-                return userEntry;
+            for (Entry accountConfig : BridgeConfig.readAccounts(directory)) {
+                try {
+                    Dn root = directory.getDnFactory().create(accountConfig.get("rootDN").getString());
+                    Dn overlapping = null;
+                    for (Dn other : roots) {
+                        if (root.equals(other) || root.isDescendantOf(other) || other.isDescendantOf(root)) {
+                            overlapping = other;
+                        }
+                    }
+                    if (overlapping != null) {
+                        LOG.error("Not polling the account of " + accountConfig.getDn() + ", its rootDN overlaps " + overlapping);
+                        continue;
+                    }
+                    LDAPIAMPoller poller = new LDAPIAMPoller(directory, accountConfig, this);
+                    poller.setCredentialCache(credentialCache);
+                    poller.setAccountIndex(accountIndex);
+                    poller.start();
+                    accounts.add(poller);
+                    roots.add(root);
+                } catch (Throwable e) {
+                    LOG.error("Unable to start polling the account of " + accountConfig.getDn(), e);
+                }
             }
-        } catch (LdapNoSuchObjectException e) {
-            // Fallthrough
+        } catch (Throwable e) {
+            LOG.error("Exception reading the account configs", e);
         }
-        return null;
     }
 
-    private String allocateUserID(String name) {
-        return userIDAllocator.allocateUID(name);
+    /**
+     * Polls IAM as soon as the pollRequest attribute of the config entry is modified, e.g. after an urgent
+     * offboarding. Modifying it on the config entry polls every account, on an account config entry only
+     * that account:
+     * <pre>
+     * dn: cn=config,ads-authenticatorid=awsiamauthenticator,ou=authenticators,...
+     * changetype: modify
+     * replace: pollRequest
+     * pollRequest: offboarded jdoe
+     * </pre>
+     */
+    private void listenForPollRequests() {
+        try {
+            NotificationCriteria criteria = new NotificationCriteria();
+            criteria.setBase(directory.getDnFactory().create(BridgeConfig.CONFIG_DN));
+            criteria.setScope(SearchScope.SUBTREE);
+            criteria.setEventMask(EventType.MODIFY);
+            configListener = new DirectoryListener() {
+                @Override
+                public void entryModified(ModifyOperationContext modifyContext) {
+                    for (Modification mod : modifyContext.getModItems()) {
+                        AttributeType type = mod.getAttribute().getAttributeType();
+                        String name = type != null ? type.getName() : mod.getAttribute().getUpId();
+                        if ("pollRequest".equalsIgnoreCase(name)) {
+                            requestPolls(modifyContext.getDn());
+                            return;
+                        }
+                    }
+                }
+
+                @Override
+                public void entryAdded(AddOperationContext addContext) {
+                }
+
+                @Override
+                public void entryDeleted(DeleteOperationContext deleteContext) {
+                }
+
+                @Override
+                public void entryRenamed(RenameOperationContext renameContext) {
+                }
+
+                @Override
+                public void entryMoved(MoveOperationContext moveContext) {
+                }
+
+                @Override
+                public void entryMovedAndRenamed(MoveAndRenameOperationContext moveAndRenameContext) {
+                }
+            };
+            directory.getEventService().addListener(configListener, criteria);
+        } catch (Exception e) {
+            LOG.warn("Unable to listen for poll requests on the config entry", e);
+        }
     }
 
-    public void start() {
-        LOG.info("IAMPoller started");
-        Runnable poll = new Runnable() {
-            @Override
-            public void run() {
-                pollIAM();
+    private void requestPolls(Dn dn) {
+        boolean all = dn.equals(configDn);
+        List<LDAPIAMPoller> pollers = new ArrayList<LDAPIAMPoller>();
+        if (all) {
+            pollers.add(this);
+        }
+        for (LDAPIAMPoller poller : accounts) {
+            if (all || dn.equals(poller.configDn)) {
+                pollers.add(poller);
+            }
+        }
+        for (LDAPIAMPoller poller : pollers) {
+            LOG.info("Poll of IAM requested through the config entry" + (poller.account != null ? " for account " + poller.account : ""));
+            try {
+                poller.requestPoll();
+            } catch (IllegalStateException e) {
+                LOG.warn("Poll requested before the IAM poller is ready, ignoring it");
+            }
+        }
+    }
+
+    /**
+     * Stops polling and consuming events, letting a poll in progress finish, and closes the ID allocators.
+     * The main poller stops the pollers of the additional accounts first.
+     */
+    public void stop() {
+        for (LDAPIAMPoller poller : accounts) {
+            poller.stop();
+        }
+        accounts.clear();
+        if (eventConsumer != null) {
+            eventConsumer.stop();
+        }
+        if (configListener != null) {
+            try {
+                directory.getEventService().removeListener(configListener);
+            } catch (Throwable e) {
+                LOG.warn("Unable to remove the config entry listener", e);
+            }
+        }
+        IAMProvisioning.unregister(this);
+        if (executor != null) {
+            synchronized (this) {
+                executor.shutdown();
+                if (nextPoll != null) {
+                    nextPoll.cancel(false);
+                }
             }
-        };
-        Executors.newScheduledThreadPool(1).scheduleAtFixedRate(poll, 10, pollPeriod, TimeUnit.SECONDS);
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    LOG.warn("IAM poll did not finish in 30s, interrupting it");
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (partition != null && lastSnapshot != null) {
+            // Keep the verifiers stored since the last poll
+            saveSnapshot(new SyncSnapshot(lastSnapshot.getState(), lastSnapshot.getUserIDs(), lastSnapshot.getGroupIDs(),
+                    lastSnapshot.getHashes(), currentVerifiers()));
+        }
+        if (main == null) {
+            userIDAllocator.close();
+            groupIDAllocator.close();
+        }
+        LOG.info(account != null ? "IAMPoller stopped for account " + account : "IAMPoller stopped");
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Allocates IDs from a counter kept next to the mappings in a local file, for single-node and air-gapped
+ * deployments. The counter is recovered from the highest recorded ID on startup.
+ */
+public class LocalIDAllocator implements IDAllocator {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalIDAllocator.class);
+
+    private final LocalIDStore store;
+    private long nextID = 1001;
+
+    public LocalIDAllocator(LocalIDStore store) {
+        this.store = store;
+        for (String id : store.getAll().values()) {
+            nextID = Math.max(nextID, Long.parseLong(id) + 1);
+        }
+    }
+
+    @Override
+    public void init(long timeout) {
+    }
+
+    @Override
+    public synchronized String allocateUID(String name) {
+        String id = assign(name);
+        flush();
+        return id;
+    }
+
+    /**
+     * Records the IDs of all the names and syncs the store once, before any of the IDs is handed out.
+     */
+    @Override
+    public synchronized Map<String, String> allocateUIDs(Collection<String> names) {
+        Map<String, String> ids = new HashMap<String, String>();
+        for (String name : names) {
+            ids.put(name, assign(name));
+        }
+        flush();
+        return ids;
+    }
+
+    private String assign(String name) {
+        String id = store.get(name);
+        if (id != null) {
+            return id;
+        }
+        id = String.valueOf(nextID++);
+        try {
+            store.put(name, id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to record the ID of " + name, e);
+        }
+        LOG.debug("Name " + name + " assigned ID " + id);
+        return id;
+    }
+
+    private void flush() {
+        try {
+            store.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to sync the local ID store", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            store.close();
+        } catch (IOException e) {
+            LOG.warn("Exception closing the local ID store", e);
+        }
+    }
+}
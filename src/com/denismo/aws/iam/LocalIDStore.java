@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, append-only file of name to ID mappings, loaded into memory on startup.
+ *
+ * Each record is the UTF-8 name prefixed with its length, the ID and a CRC32 of both. A record torn by
+ * a crash fails its length or checksum and is cut off on the next load, together with anything after it.
+ * Records are appended by {@link #put} and only synced to disk by {@link #flush}, which the allocators call
+ * once per allocation call rather than once per name.
+ */
+public class LocalIDStore {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalIDStore.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Map<String, String> ids = new ConcurrentHashMap<String, String>();
+    private RandomAccessFile out;
+    private boolean dirty;
+
+    public LocalIDStore(File file) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        load();
+    }
+
+    private void load() throws IOException {
+        out = new RandomAccessFile(file, "rw");
+        long good = 0;
+        try {
+            while (true) {
+                int length = out.readUnsignedShort();
+                byte[] name = new byte[length];
+                out.readFully(name);
+                int id = out.readInt();
+                int crc = out.readInt();
+                if (crc != checksum(name, id)) {
+                    LOG.warn("Corrupt record at " + good + " in " + file);
+                    break;
+                }
+                ids.put(new String(name, UTF8), String.valueOf(id));
+                good = out.getFilePointer();
+            }
+        } catch (EOFException e) {
+            // End of the file, or a record torn by a crash
+        }
+        if (good < out.length()) {
+            LOG.warn("Truncating " + file + " from " + out.length() + " to " + good + " bytes");
+            out.setLength(good);
+        }
+        out.seek(good);
+        LOG.info("Loaded " + ids.size() + " IDs from " + file);
+    }
+
+    /**
+     * @return the ID recorded for the name, or null if it has never been seen
+     */
+    public String get(String name) {
+        return ids.get(name);
+    }
+
+    public synchronized void put(String name, String id) throws IOException {
+        if (id.equals(ids.get(name))) return;
+        byte[] nameBytes = name.getBytes(UTF8);
+        int idValue = Integer.parseInt(id);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(nameBytes.length + 10);
+        DataOutputStream record = new DataOutputStream(buffer);
+        record.writeShort(nameBytes.length);
+        record.write(nameBytes);
+        record.writeInt(idValue);
+        record.writeInt(checksum(nameBytes, idValue));
+        out.write(buffer.toByteArray());
+        dirty = true;
+        ids.put(name, id);
+    }
+
+    /**
+     * Syncs the records put since the last flush to disk.
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty) return;
+        out.getChannel().force(false);
+        dirty = false;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public Map<String, String> getAll() {
+        return ids;
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private static int checksum(byte[] name, int id) {
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(id >>> 24);
+        crc.update(id >>> 16);
+        crc.update(id >>> 8);
+        crc.update(id);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the calls an AWS client makes, their latency, throttling and other errors under a metric prefix
+ * such as <code>aws.iam</code>.
+ */
+public class MetricsRequestHandler extends RequestHandler2 {
+    private final ThreadLocal<Long> started = new ThreadLocal<Long>();
+    private final AtomicLong calls;
+    private final AtomicLong throttled;
+    private final AtomicLong errors;
+    private final BridgeMetrics.Histogram latency;
+
+    public MetricsRequestHandler(String prefix) {
+        calls = BridgeMetrics.counter(prefix + ".calls");
+        throttled = BridgeMetrics.counter(prefix + ".throttled");
+        errors = BridgeMetrics.counter(prefix + ".errors");
+        latency = BridgeMetrics.histogram(prefix + ".latency");
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        calls.incrementAndGet();
+        started.set(System.nanoTime());
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        Long start = started.get();
+        if (start != null) {
+            latency.recordSince(start);
+            started.remove();
+        }
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        started.remove();
+        if (AdaptiveRateLimiter.isThrottling(e)) {
+            throttled.incrementAndGet();
+        } else {
+            errors.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Read-only partition with a single entry listing the {@link BridgeMetrics} as <code>iamMetric</code>
+ * values of the form "name value", rebuilt whenever it is read, so that any LDAP client can query them:
+ * <pre>ldapsearch -x -b cn=monitor -s base iamMetric</pre>
+ */
+public class MonitorPartition extends IAMPartition {
+    private static final Logger LOG = LoggerFactory.getLogger(MonitorPartition.class);
+
+    public MonitorPartition(SchemaManager schemaManager, Dn suffixDn) throws LdapException {
+        super(schemaManager, suffixDn);
+        setId("iammonitor");
+    }
+
+    /**
+     * Adds the monitor partition at the configured monitorDN, unless it is disabled or the DN is taken.
+     */
+    public static void install(DirectoryService directory) {
+        try {
+            String monitorDN = BridgeConfig.getString(BridgeConfig.read(directory), "monitorDN", "cn=monitor");
+            if (monitorDN.trim().length() == 0) return;
+            Dn dn = directory.getDnFactory().create(monitorDN);
+            for (Partition existing : directory.getPartitions()) {
+                if (existing.getSuffixDn().equals(dn)) {
+                    LOG.warn("Not adding the metrics entry, " + monitorDN + " is served by partition " + existing.getId());
+                    return;
+                }
+            }
+            directory.addPartition(new MonitorPartition(directory.getSchemaManager(), dn));
+            LOG.info("Metrics are available at " + monitorDN);
+        } catch (Throwable e) {
+            LOG.error("Exception adding the metrics entry", e);
+        }
+    }
+
+    private void refresh() throws LdapException {
+        Entry entry = new DefaultEntry(getSchemaManager(), getSuffixDn());
+        Rdn rdn = getSuffixDn().getRdn();
+        entry.put(rdn.getType(), rdn.getValue());
+        entry.put(SchemaConstants.OBJECT_CLASS_AT, "top", "extensibleObject");
+        for (Map.Entry<String, Long> metric : BridgeMetrics.snapshot().entrySet()) {
+            entry.add("iamMetric", metric.getKey() + " " + metric.getValue());
+        }
+        publish(Collections.singletonList(entry));
+    }
+
+    @Override
+    public Entry lookup(LookupOperationContext lookupContext) throws LdapException {
+        refresh();
+        return super.lookup(lookupContext);
+    }
+
+    @Override
+    public boolean hasEntry(HasEntryOperationContext hasEntryContext) throws LdapException {
+        return hasEntryContext.getDn().equals(getSuffixDn());
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        refresh();
+        return super.search(searchContext);
+    }
+}
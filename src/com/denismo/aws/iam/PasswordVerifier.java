@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Salted PBKDF2 verifier of a secret key that IAM has accepted, stored on the account entry so that later
+ * binds can be checked without IAM, also after a restart. A verifier is only valid for the access key
+ * it was made for and for a limited time after the IAM verification, and has the form
+ * <code>accessKey$iterations$verifiedMillis$salt$hash</code>.
+ */
+public final class PasswordVerifier {
+    public static final String ATTRIBUTE = "iamVerifier";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 160;
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordVerifier() {
+    }
+
+    public static String create(String accessKey, String secret, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return accessKey + "$" + iterations + "$" + System.currentTimeMillis() + "$" + Base64.encodeBase64String(salt)
+                + "$" + Base64.encodeBase64String(hash(secret, salt, iterations));
+    }
+
+    /**
+     * @return true if the verifier was made for the access key within maxAge milliseconds
+     */
+    public static boolean isCurrent(String verifier, String accessKey, long maxAge) {
+        String[] parts = parse(verifier);
+        return parts != null && parts[0].equals(accessKey)
+                && System.currentTimeMillis() - Long.parseLong(parts[2]) <= maxAge;
+    }
+
+    /**
+     * @return whether the secret matches a current verifier of the access key, or null if there is no such verifier
+     */
+    public static Boolean check(String verifier, String accessKey, String secret, long maxAge) {
+        if (!isCurrent(verifier, accessKey, maxAge)) return null;
+        String[] parts = parse(verifier);
+        byte[] expected = Base64.decodeBase64(parts[4]);
+        byte[] actual = hash(secret, Base64.decodeBase64(parts[3]), Integer.parseInt(parts[1]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private static String[] parse(String verifier) {
+        if (verifier == null) return null;
+        String[] parts = verifier.split("\\$");
+        if (parts.length != 5) return null;
+        try {
+            Integer.parseInt(parts[1]);
+            Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return parts;
+    }
+
+    private static byte[] hash(String secret, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(secret.toCharArray(), salt, iterations, HASH_LENGTH);
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
+import com.amazonaws.services.securitytoken.model.GetCallerIdentityRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Verifies credentials with STS GetCallerIdentity, which needs no IAM permissions and is the cheapest
+ * identity call available. A single client with a pooled keep-alive connection manager is shared by all
+ * binds and every request is signed with the credentials being verified. Only the errors STS returns for
+ * unknown, expired or wrongly signed credentials count as a rejection; any other service error, such as
+ * clock skew or a region the account has not opted in to, is thrown and handled as AWS being unavailable.
+ */
+public class STSCredentialVerifier implements CredentialVerifier {
+    private static final Logger LOG = LoggerFactory.getLogger(STSCredentialVerifier.class);
+
+    private static final Set<String> REJECTED = new HashSet<String>(Arrays.asList(
+            "InvalidClientTokenId", "SignatureDoesNotMatch", "ExpiredToken", "UnrecognizedClientException"));
+
+    private final AWSSecurityTokenServiceClient client;
+
+    public STSCredentialVerifier(ClientConfiguration clientConfig, String endpoint) {
+        client = new AWSSecurityTokenServiceClient(new AnonymousAWSCredentials(), clientConfig);
+        client.addRequestHandler(new MetricsRequestHandler("aws.sts"));
+        client.setEndpoint(endpoint);
+        LOG.info("Verifying credentials against " + endpoint);
+    }
+
+    @Override
+    public Boolean verify(AWSCredentials credentials) {
+        GetCallerIdentityRequest request = new GetCallerIdentityRequest();
+        request.setRequestCredentialsProvider(new AWSStaticCredentialsProvider(credentials));
+        try {
+            client.getCallerIdentity(request);
+            return true;
+        } catch (AmazonServiceException e) {
+            if (REJECTED.contains(e.getErrorCode())) {
+                LOG.debug("Verification failed: {}", e.getMessage());
+                return false;
+            }
+            throw e;
+        } catch (AmazonClientException e) {
+            LOG.warn("Unable to reach STS: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        client.shutdown();
+    }
+}
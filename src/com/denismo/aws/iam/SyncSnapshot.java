@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2013 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.Role;
+import com.amazonaws.services.identitymanagement.model.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The IAM state, resolved IDs and entry content hashes of the last complete sync, persisted so that a
+ * restarted server can check and repair its entries without going to IAM first. With the in-memory IAM
+ * partition it also carries the stored credential verifiers, which would otherwise not survive a restart.
+ *
+ * The file is tab separated, one record per line, and the groups of a user are space separated. IAM names,
+ * ARNs and paths cannot contain whitespace. It is written to a temporary file and renamed over the previous snapshot.
+ */
+public class SyncSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(SyncSnapshot.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HEADER = "# IAM sync snapshot v2";
+
+    private final IAMState state;
+    private final Map<String, String> userIDs;
+    private final Map<String, String> groupIDs;
+    private final Map<String, String> hashes;
+    private final Map<String, String> verifiers;
+
+    public SyncSnapshot(IAMState state, Map<String, String> userIDs, Map<String, String> groupIDs, Map<String, String> hashes,
+                        Map<String, String> verifiers) {
+        this.state = state;
+        this.userIDs = userIDs;
+        this.groupIDs = groupIDs;
+        this.hashes = hashes;
+        this.verifiers = verifiers;
+    }
+
+    public IAMState getState() {
+        return state;
+    }
+
+    public Map<String, String> getUserIDs() {
+        return userIDs;
+    }
+
+    public Map<String, String> getGroupIDs() {
+        return groupIDs;
+    }
+
+    /**
+     * @return content hash of each entry by normalized DN
+     */
+    public Map<String, String> getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return the stored credential verifier of each account entry by normalized DN
+     */
+    public Map<String, String> getVerifiers() {
+        return verifiers;
+    }
+
+    public void save(File file) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(stream, UTF8));
+            out.write(HEADER + "\n");
+            for (Group group : state.getGroups()) {
+                line(out, "G", group.getGroupName(), group.getGroupId(), group.getArn(), group.getPath());
+            }
+            for (User user : state.getUsers()) {
+                String accessKey = state.getAccessKey(user.getUserName());
+                line(out, "U", user.getUserName(), user.getUserId(), user.getArn(), user.getPath(),
+                        accessKey != null ? accessKey : "", join(state.getUserGroups(user.getUserName())));
+            }
+            for (Role role : state.getRoles()) {
+                line(out, "R", role.getRoleName(), role.getRoleId(), role.getArn(), role.getPath());
+            }
+            for (Map.Entry<String, String> id : userIDs.entrySet()) {
+                line(out, "UID", id.getKey(), id.getValue());
+            }
+            for (Map.Entry<String, String> id : groupIDs.entrySet()) {
+                line(out, "GID", id.getKey(), id.getValue());
+            }
+            for (Map.Entry<String, String> hash : hashes.entrySet()) {
+                line(out, "H", hash.getKey(), hash.getValue());
+            }
+            for (Map.Entry<String, String> verifier : verifiers.entrySet()) {
+                line(out, "V", verifier.getKey(), verifier.getValue());
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows does not replace an existing file on rename
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the snapshot, or null if there is none or it cannot be read
+     */
+    public static SyncSnapshot load(File file) {
+        if (!file.isFile()) return null;
+        IAMState state = new IAMState();
+        Map<String, String> userIDs = new HashMap<String, String>();
+        Map<String, String> groupIDs = new HashMap<String, String>();
+        Map<String, String> hashes = new HashMap<String, String>();
+        Map<String, String> verifiers = new HashMap<String, String>();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                if (!HEADER.equals(in.readLine())) {
+                    LOG.warn("Ignoring " + file + " written by another version");
+                    return null;
+                }
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] cols = line.split("\t", -1);
+                    if ("G".equals(cols[0])) {
+                        state.getGroups().add(new Group(cols[4], cols[1], cols[2], cols[3], null));
+                    } else if ("U".equals(cols[0])) {
+                        state.getUsers().add(new User(cols[4], cols[1], cols[2], cols[3], null));
+                        state.setAccessKey(cols[1], cols[5].length() > 0 ? cols[5] : null);
+                        state.setUserGroups(cols[1], split(cols[6]));
+                    } else if ("R".equals(cols[0])) {
+                        state.getRoles().add(new Role().withRoleName(cols[1]).withRoleId(cols[2]).withArn(cols[3]).withPath(cols[4]));
+                    } else if ("UID".equals(cols[0])) {
+                        userIDs.put(cols[1], cols[2]);
+                    } else if ("GID".equals(cols[0])) {
+                        groupIDs.put(cols[1], cols[2]);
+                    } else if ("H".equals(cols[0])) {
+                        hashes.put(cols[1], cols[2]);
+                    } else if ("V".equals(cols[0])) {
+                        verifiers.put(cols[1], cols[2]);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to read " + file, e);
+            return null;
+        }
+        return new SyncSnapshot(state, userIDs, groupIDs, hashes, verifiers);
+    }
+
+    private static void line(Writer out, String type, String... cols) throws IOException {
+        out.write(type);
+        for (String col : cols) {
+            out.write('\t');
+            out.write(col != null ? col : "");
+        }
+        out.write('\n');
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static List<String> split(String value) {
+        return value.length() > 0 ? new ArrayList<String>(Arrays.asList(value.split(" "))) : new ArrayList<String>();
+    }
+}
@@ -29,28 +29,54 @@ import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
+ * DynamoDB backed {@link IDAllocator}, shared by every node using the same tables.
+ *
  * User: Denis Mikhalkin
  * Date: 28/03/13
  * Time: 9:15 PM
  */
-public class UIDAllocator {
+public class UIDAllocator implements IDAllocator {
     private static final Logger LOG = LoggerFactory.getLogger(UIDAllocator.class);
+    private static final int BATCH_GET_SIZE = 100;
+    private static final int MAX_BATCH_ATTEMPTS = 5;
     private String table;
     private final AmazonDynamoDBClient client;
+    private final LocalIDStore localIDs;
+    private int blockSize = 20;
+    private long nextID = 1;
+    private long leaseEnd = 0;
 
-    public UIDAllocator(AWSCredentialsProvider credentials, String space) throws LdapException {
+    /**
+     * @param localIDs local copy of the mappings consulted before DynamoDB, or null to always go to DynamoDB
+     */
+    public UIDAllocator(AWSCredentialsProvider credentials, String space, LocalIDStore localIDs, String endpoint) throws LdapException {
         this.table = "IAM" + space;
+        this.localIDs = localIDs;
         client = new AmazonDynamoDBClient(new AWSCredentialsProviderChain(new DefaultAWSCredentialsProviderChain(), credentials));
-        client.setEndpoint("dynamodb.ap-southeast-2.amazonaws.com");
-        createTable();
+        client.addRequestHandler(new MetricsRequestHandler("aws.dynamodb"));
+        client.setEndpoint(endpoint);
+    }
+
+    /**
+     * Creates the table if it does not exist yet and waits at most timeout milliseconds for it to become active.
+     */
+    @Override
+    public void init(long timeout) throws LdapException {
+        createTable(System.currentTimeMillis() + timeout);
     }
 
-    private void createTable() throws LdapException {
+    private void createTable(long deadline) throws LdapException {
         CreateTableResult res = null;
         try {
             res = client.createTable(new CreateTableRequest(table,
@@ -66,53 +92,183 @@ public class UIDAllocator {
         if (TableStatus.ACTIVE.toString().equals(res.getTableDescription().getTableStatus())) {
             return;
         }
-        int i = 0;
         boolean active = false;
-        do {
+        while (System.currentTimeMillis() < deadline) {
             DescribeTableResult dres = client.describeTable(new DescribeTableRequest().withTableName(table));
             if (TableStatus.ACTIVE.toString().equals(dres.getTable().getTableStatus())) {
                 active = true;
                 break;
             }
             try {
-                Thread.sleep(10000);
+                Thread.sleep(Math.max(1, Math.min(5000, deadline - System.currentTimeMillis())));
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 break;
             }
-        } while (i < 20);
+        }
         if (!active) {
             throw new LdapException("Unable to initialize the AWS DynamoDB table " + table);
         }
     }
 
-    public String allocateUID(String name) {
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public synchronized String allocateUID(String name) {
+        String local = localIDs != null ? localIDs.get(name) : null;
+        if (local != null) {
+            return local;
+        }
         GetItemResult getItem = client.getItem(new GetItemRequest().withTableName(table).withKey(new Key(new AttributeValue().withS(name))).withAttributesToGet("uidNumber"));
+        String id;
         if (getItem.getItem() == null) {
-            String counter = getNextID(client);
-            LOG.info("Name " + name + " assigned ID " + counter);
-            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
-            item.put("Name", new AttributeValue().withS(name));
-            item.put("uidNumber", new AttributeValue().withN(counter));
+            id = register(name, getNextID(client));
+        } else {
+            id = getItem.getItem().get("uidNumber").getN();
+            LOG.debug("Name {} has ID {}", name, id);
+            storeLocally(name, id);
+        }
+        flushLocally();
+        return id;
+    }
+
+    /**
+     * Resolves the IDs of all the names at once. Names not known locally are read with BatchGetItem,
+     * 100 keys per request, and only the names DynamoDB does not know get new IDs, each recorded with a
+     * conditional PutItem.
+     *
+     * @return the ID of every name
+     */
+    @Override
+    public synchronized Map<String, String> allocateUIDs(Collection<String> names) {
+        Map<String, String> ids = new HashMap<String, String>();
+        Set<String> unknown = new LinkedHashSet<String>();
+        for (String name : names) {
+            String id = localIDs != null ? localIDs.get(name) : null;
+            if (id != null) {
+                ids.put(name, id);
+            } else {
+                unknown.add(name);
+            }
+        }
+        if (unknown.isEmpty()) return ids;
+        List<String> misses = new ArrayList<String>(unknown);
+
+        for (int i = 0; i < misses.size(); i += BATCH_GET_SIZE) {
+            List<Key> keys = new ArrayList<Key>();
+            for (String name : misses.subList(i, Math.min(misses.size(), i + BATCH_GET_SIZE))) {
+                keys.add(new Key(new AttributeValue().withS(name)));
+            }
+            Map<String, KeysAndAttributes> request = Collections.singletonMap(table,
+                    new KeysAndAttributes().withKeys(keys).withAttributesToGet("Name", "uidNumber"));
+            for (int attempt = 0; request != null && !request.isEmpty(); attempt++) {
+                if (attempt >= MAX_BATCH_ATTEMPTS) {
+                    throw new AmazonClientException("Unable to read all IDs from " + table);
+                }
+                if (attempt > 0) {
+                    try {
+                        Thread.sleep(100L << attempt);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new AmazonClientException("Interrupted reading IDs from " + table);
+                    }
+                }
+                BatchGetItemResult result = client.batchGetItem(new BatchGetItemRequest().withRequestItems(request));
+                BatchResponse response = result.getResponses() != null ? result.getResponses().get(table) : null;
+                if (response != null) {
+                    for (Map<String, AttributeValue> item : response.getItems()) {
+                        String name = item.get("Name").getS();
+                        String id = item.get("uidNumber").getN();
+                        ids.put(name, id);
+                        storeLocally(name, id);
+                    }
+                }
+                request = result.getUnprocessedKeys();
+            }
+        }
+
+        int allocated = 0;
+        for (String name : misses) {
+            if (!ids.containsKey(name)) {
+                ids.put(name, register(name, getNextID(client)));
+                allocated++;
+            }
+        }
+        flushLocally();
+        LOG.debug("Resolved {} names in {}, {} of them new", new Object[] {misses.size(), table, allocated});
+        return ids;
+    }
+
+    /**
+     * Records the newly allocated ID of the name with a conditional PutItem. If another node recorded an ID
+     * for the name first, that ID is read back and adopted instead, so every node uses the same ID. The ID
+     * is only kept locally once DynamoDB holds it.
+     *
+     * @return the ID DynamoDB holds for the name
+     */
+    private String register(String name, String id) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put("Name", new AttributeValue().withS(name));
+        item.put("uidNumber", new AttributeValue().withN(id));
+        try {
+            client.putItem(new PutItemRequest().withTableName(table).withItem(item).withExpected(Collections.singletonMap("Name", new ExpectedAttributeValue(false))));
+            LOG.debug("Name " + name + " assigned ID " + id);
+        } catch (ConditionalCheckFailedException ccf) {
+            id = client.getItem(new GetItemRequest().withTableName(table).withKey(new Key(new AttributeValue().withS(name)))
+                    .withAttributesToGet("uidNumber").withConsistentRead(true)).getItem().get("uidNumber").getN();
+            LOG.debug("Name {} got ID {} from another node", name, id);
+        }
+        storeLocally(name, id);
+        return id;
+    }
+
+    @Override
+    public synchronized void close() {
+        client.shutdown();
+        if (localIDs != null) {
             try {
-                client.putItem(new PutItemRequest().withTableName(table).withItem(item).withExpected(Collections.singletonMap("Name", new ExpectedAttributeValue(false))));
-                return counter;
-            } catch (ConditionalCheckFailedException ccf) {
-                counter = client.getItem(new GetItemRequest().withTableName(table).withKey(new Key(new AttributeValue().withS(name))).withAttributesToGet("uidNumber"))
-                        .getItem().get("uidNumber").getN();
-                LOG.info("Name " + name + " got ID " + counter);
-                return counter;
+                localIDs.close();
+            } catch (IOException e) {
+                LOG.warn("Exception closing the local ID store", e);
             }
-        } else {
-            String counter = getItem.getItem().get("uidNumber").getN();
-            LOG.info("Name " + name + " has ID " + counter);
-            return counter;
         }
     }
 
+    private void storeLocally(String name, String id) {
+        if (localIDs != null) {
+            try {
+                localIDs.put(name, id);
+            } catch (IOException e) {
+                LOG.warn("Unable to record the ID of " + name + " locally", e);
+            }
+        }
+    }
+
+    private void flushLocally() {
+        if (localIDs != null) {
+            try {
+                localIDs.flush();
+            } catch (IOException e) {
+                LOG.warn("Unable to sync the local IDs", e);
+            }
+        }
+    }
+
+    /**
+     * Hands out IDs from a block leased from the GlobalCounter with a single ADD, leasing a new block when
+     * it runs out. IDs left in a block when the process stops are never used.
+     */
     private String getNextID(AmazonDynamoDBClient client) {
-        UpdateItemResult updated = client.updateItem(new UpdateItemRequest().withTableName(table).withKey(new Key(new AttributeValue("GlobalCounter"))).
-                withAttributeUpdates(Collections.singletonMap("Value", new AttributeValueUpdate(new AttributeValue().withN("1"), AttributeAction.ADD))).
-                withReturnValues(ReturnValue.UPDATED_NEW));
-        return String.valueOf(1000 +  Integer.parseInt(updated.getAttributes().get("Value").getN()));
+        if (nextID > leaseEnd) {
+            UpdateItemResult updated = client.updateItem(new UpdateItemRequest().withTableName(table).withKey(new Key(new AttributeValue("GlobalCounter"))).
+                    withAttributeUpdates(Collections.singletonMap("Value", new AttributeValueUpdate(new AttributeValue().withN(String.valueOf(blockSize)), AttributeAction.ADD))).
+                    withReturnValues(ReturnValue.UPDATED_NEW));
+            leaseEnd = Long.parseLong(updated.getAttributes().get("Value").getN());
+            nextID = leaseEnd - blockSize + 1;
+            LOG.debug("Leased IDs {} to {} from {}", new Object[] {1000 + nextID, 1000 + leaseEnd, table});
+        }
+        return String.valueOf(1000 + nextID++);
     }
 }